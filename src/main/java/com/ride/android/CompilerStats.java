@@ -0,0 +1,125 @@
+package com.ride.android;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Wall time, allocated bytes and count of processed units for every phase of compilation (--stats)
+ * <p>
+ * Program is compiled batch by batch, so phases are interleaved, every phase sums its measurements over all batches.
+ * Allocations are read from {@link com.sun.management.ThreadMXBean}: for the compiling thread only,
+ * or for all threads, if type checking runs in parallel. If JVM can not count them, they are not reported.
+ * <p>
+ * Disabled stats measure nothing, so they can be called unconditionally.
+ */
+final class CompilerStats {
+    enum Phase {
+        TOKENIZE("tokenize", "tokens"),
+        PARSE("parse", "s-expression nodes"),
+        AST("ast", "nodes"),
+        INFER("infer", "type variables"),
+        GENERATE("generate", "top-level forms"),
+        EMIT("emit", "bytes of dex");
+
+        final String title;
+        final String unit;
+
+        Phase(String title, String unit) {
+            this.title = title;
+            this.unit = unit;
+        }
+    }
+
+    private final boolean enabled;
+    private final boolean allThreads;
+    private final com.sun.management.ThreadMXBean threads;
+
+    private final long[] time = new long[Phase.values().length];
+    private final long[] allocated = new long[Phase.values().length];
+    private final long[] counts = new long[Phase.values().length];
+    private long startTime;
+    private long startAllocated;
+
+    /**
+     * @param allThreads if true, allocations of all threads are counted, not only of the calling one
+     */
+    CompilerStats(boolean enabled, boolean allThreads) {
+        this.enabled = enabled;
+        this.allThreads = allThreads;
+        this.threads = enabled ? allocationCounter() : null;
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Starts measuring of a phase, it is ended by {@link #stop(Phase)}
+     */
+    void start() {
+        if (!enabled) {
+            return;
+        }
+        startAllocated = allocatedBytes();
+        startTime = System.nanoTime();
+    }
+
+    void stop(Phase phase) {
+        if (!enabled) {
+            return;
+        }
+        time[phase.ordinal()] += System.nanoTime() - startTime;
+        allocated[phase.ordinal()] += allocatedBytes() - startAllocated;
+    }
+
+    void count(Phase phase, long amount) {
+        counts[phase.ordinal()] += amount;
+    }
+
+    void report(PrintStream out) {
+        out.printf("%-10s %12s %16s %14s%n", "phase", "time, ms", "allocated, KB", "count");
+        long totalTime = 0;
+        long totalAllocated = 0;
+        for (Phase phase : Phase.values()) {
+            int i = phase.ordinal();
+            out.printf("%-10s %12.1f %16s %,14d %s%n",
+                    phase.title, time[i] / 1e6, kilobytes(allocated[i]), counts[i], phase.unit);
+            totalTime += time[i];
+            totalAllocated += allocated[i];
+        }
+        out.printf("%-10s %12.1f %16s%n", "total", totalTime / 1e6, kilobytes(totalAllocated));
+    }
+
+    private String kilobytes(long bytes) {
+        return threads != null ? String.format("%,d", bytes / 1024) : "n/a";
+    }
+
+    private long allocatedBytes() {
+        if (threads == null) {
+            return 0;
+        }
+        if (!allThreads) {
+            return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        long result = 0;
+        for (long bytes : threads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            // thread, that is not alive, is -1
+            result += Math.max(bytes, 0);
+        }
+        return result;
+    }
+
+    private static com.sun.management.ThreadMXBean allocationCounter() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            return null;
+        }
+        com.sun.management.ThreadMXBean counter = (com.sun.management.ThreadMXBean) threads;
+        if (!counter.isThreadAllocatedMemorySupported()) {
+            return null;
+        }
+        counter.setThreadAllocatedMemoryEnabled(true);
+        return counter;
+    }
+}
@@ -1,18 +1,24 @@
 package com.ride.android;
 
+import com.ride.android.CompilerStats.Phase;
 import com.ride.android.ast.Ast;
 import com.ride.android.ast.Expression;
+import com.ride.android.optimizations.Trees;
 import com.ride.android.parser.SExpressions;
 import com.ride.android.types.TypeChecker;
 import com.ride.android.codegen.Generator;
 import com.ride.android.parser.Parser;
+import com.ride.android.parser.TokenBuffer;
 import com.ride.android.parser.Tokenizer;
 import picocli.CommandLine;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.List;
 
 public class MainCompiler {
+    private static final int PARALLEL_BATCH_SIZE = 4096;
 
     @CommandLine.Command(name = "ride-android")
     static class CompilerOptions {
@@ -23,6 +29,38 @@ public class MainCompiler {
                 description = "Output file (default: ${DEFAULT-VALUE})")
         File output = new File("classes.dex");
 
+        @CommandLine.Option(names = {"-j", "--jobs"},
+                description = "Threads for type checking (default: ${DEFAULT-VALUE}). "
+                        + "1 streams the program form by form, so memory is bounded by the largest form; "
+                        + "more threads check batches of " + PARALLEL_BATCH_SIZE + " forms, "
+                        + "which are kept in memory together")
+        int jobs = 1;
+
+        @CommandLine.Option(names = {"-O0"},
+                description = "Turn optimizations off, expressions are compiled as they are written")
+        boolean noOptimizations;
+
+        @CommandLine.Option(names = {"--inline-budget"},
+                description = "Max size (in nodes) of function body, that is inlined, 0 turns inlining off "
+                        + "(default: ${DEFAULT-VALUE})")
+        int inlineBudget = Generator.DEFAULT_INLINE_BUDGET;
+
+        @CommandLine.Option(names = {"--lazy-init"},
+                description = "Make function objects of definitions on first use, instead of on program start")
+        boolean lazyInit;
+
+        @CommandLine.Option(names = {"--registers"},
+                description = "Print locals of every method before and after register allocation")
+        boolean reportRegisters;
+
+        @CommandLine.Option(names = {"--stats"},
+                description = "Print time, allocations and counts of processed units for every phase")
+        boolean stats;
+
+        @CommandLine.Option(names = {"-v", "--verbose"},
+                description = "Print every form after parsing, transforming to AST and type checking")
+        boolean verbose;
+
         @CommandLine.Option(names = {"-h", "--help"}, usageHelp = true, description = "display this help message")
         boolean usageHelpRequested;
     }
@@ -33,22 +71,12 @@ public class MainCompiler {
             CommandLine.usage(new CompilerOptions(), System.out);
             return;
         }
-        StringBuilder result = new StringBuilder();
+        Reader input;
         try {
-            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(options.input)));
-            String line = reader.readLine();
-            while (line != null) {
-                result.append(line);
-                line = reader.readLine();
-            }
-
+            input = new InputStreamReader(new FileInputStream(options.input), StandardCharsets.UTF_8);
         } catch (FileNotFoundException e) {
             System.out.println("\"" + options.input.getName() + "\" not found");
             return;
-        } catch (IOException e) {
-            System.out.println("Unhandled error while reading input file:");
-            e.printStackTrace();
-            return;
         }
 
         try {
@@ -59,40 +87,134 @@ public class MainCompiler {
                 }
             }
             FileOutputStream output = new FileOutputStream(options.output);
-            compile(result.toString(), output);
+            compile(input, output, options);
             output.flush();
             output.close();
         } catch (IOException e) {
-            System.out.println("Unhandled error while writing to output file:");
+            System.out.println("Unhandled error while reading input or writing output file:");
             e.printStackTrace();
         } catch (Exception e) {
             System.out.println("Unhandled error during compilation");
             e.printStackTrace();
+        } finally {
+            try {
+                input.close();
+            } catch (IOException ignored) {
+            }
         }
     }
 
     static void compile(final String input, OutputStream output) throws IOException {
-        byte[] program = generate(infer(ast(parse(tokenize(input)))));
-        output.write(program);
+        compile(new StringReader(input), output, new CompilerOptions());
     }
 
-    private static byte[] generate(List<Expression> infer) {
-        return Generator.generate(infer);
-    }
+    /**
+     * Compiles program batch by batch:
+     * top-level forms are tokenized, parsed and collected into a batch, which is type checked and generated
+     * before the next batch is read.
+     * So only one batch is kept in memory, along with generated code.
+     * Sequential compilation uses batches of one form, parallel - big enough batches to keep threads busy.
+     */
+    static void compile(final Reader input, OutputStream output, CompilerOptions options) throws IOException {
+        Tokenizer tokenizer = new Tokenizer(input);
+        TokenBuffer tokens = new TokenBuffer();
+        TypeChecker typeChecker = new TypeChecker(options.jobs);
+        Generator generator = new Generator(!options.noOptimizations, options.inlineBudget, options.lazyInit);
+        CompilerStats stats = new CompilerStats(options.stats, options.jobs > 1);
+        int batchSize = options.jobs > 1 ? PARALLEL_BATCH_SIZE : 1;
+        List<Expression> batch = new ArrayList<>(batchSize);
+        try {
+            while (true) {
+                stats.start();
+                boolean read = tokenizer.readForm(tokens);
+                stats.stop(Phase.TOKENIZE);
+                if (!read) {
+                    break;
+                }
+                stats.count(Phase.TOKENIZE, tokens.size());
 
-    private static List<Expression> infer(List<Expression> ast) {
-        return TypeChecker.infer(ast);
-    }
+                stats.start();
+                List<SExpressions.SExpression> nodes = Parser.parse(tokens);
+                stats.stop(Phase.PARSE);
+                tokens.clear();
+                for (SExpressions.SExpression node : nodes) {
+                    if (stats.isEnabled()) {
+                        stats.count(Phase.PARSE, size(node));
+                    }
+                    if (options.verbose) {
+                        System.out.println("Parsed node: " + node);
+                    }
+
+                    stats.start();
+                    Expression expression = Ast.ast(node);
+                    stats.stop(Phase.AST);
+                    if (stats.isEnabled()) {
+                        stats.count(Phase.AST, Trees.size(expression));
+                    }
+                    if (options.verbose) {
+                        System.out.println("Transformed expression: " + expression);
+                    }
+                    batch.add(expression);
+                }
+                if (batch.size() >= batchSize) {
+                    generate(batch, typeChecker, generator, stats, options.verbose);
+                    batch.clear();
+                }
+            }
+            generate(batch, typeChecker, generator, stats, options.verbose);
+        } finally {
+            typeChecker.shutdown();
+        }
 
-    private static List<Expression> ast(List<SExpressions.SExpression> parse) {
-        return Ast.ast(parse);
+        stats.start();
+        byte[] dex = generator.compile();
+        stats.stop(Phase.EMIT);
+        stats.count(Phase.EMIT, dex.length);
+        output.write(dex);
+
+        if (options.stats) {
+            stats.count(Phase.INFER, typeChecker.getTypeVariables());
+            stats.report(System.out);
+            System.out.println("Inlined call sites: " + generator.getInlinedCalls());
+            System.out.println("Removed unused bindings: " + generator.getRemovedBindings());
+            System.out.println("Removed unused declarations: " + generator.getRemovedDeclarations());
+        }
+        if (options.reportRegisters) {
+            System.out.println("Registers (locals before -> after allocation):");
+            generator.reportRegisters(System.out);
+        }
     }
 
-    private static List<SExpressions.SExpression> parse(List<Tokenizer.Token> tokenize) {
-        return Parser.parse(tokenize);
+    private static void generate(List<Expression> batch, TypeChecker typeChecker, Generator generator,
+                                 CompilerStats stats, boolean verbose) {
+        stats.start();
+        typeChecker.inferBatch(batch);
+        stats.stop(Phase.INFER);
+        if (verbose) {
+            for (Expression decorated : batch) {
+                System.out.println("Decorated expression: " + decorated);
+            }
+        }
+
+        stats.start();
+        for (Expression expression : batch) {
+            generator.add(expression);
+        }
+        stats.stop(Phase.GENERATE);
+        stats.count(Phase.GENERATE, batch.size());
     }
 
-    private static List<Tokenizer.Token> tokenize(String input) {
-        return Tokenizer.tokenize(input);
+    /**
+     * Count of nodes of s-expression
+     */
+    private static int size(SExpressions.SExpression node) {
+        if (!(node instanceof SExpressions.ListSExpr)) {
+            return 1;
+        }
+        int size = 1;
+        for (SExpressions.SExpression child : ((SExpressions.ListSExpr) node).getAll()) {
+            size += size(child);
+        }
+        return size;
     }
 }
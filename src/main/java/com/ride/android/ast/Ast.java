@@ -1,6 +1,7 @@
 package com.ride.android.ast;
 
 import com.ride.android.parser.SExpressions;
+import com.ride.android.symbols.Symbols;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -9,6 +10,11 @@ import java.util.List;
  * This class produces abstract syntax tree from nested s-expressions
  */
 public class Ast {
+    private static final int DEFINE = Symbols.intern("define");
+    private static final int LET = Symbols.intern("let");
+    private static final int LETREC = Symbols.intern("letrec");
+    private static final int LAMBDA = Symbols.intern("lambda");
+    private static final int IF = Symbols.intern("if");
 
     /**
      * Main method
@@ -18,19 +24,25 @@ public class Ast {
     public static List<Expression> ast(List<SExpressions.SExpression> nodes) {
         List<Expression> expressions = new ArrayList<>();
         for (SExpressions.SExpression node : nodes) {
-            expressions.add(transform(node, 0));
+            expressions.add(ast(node));
         }
-        System.out.println("Transformed expresions: " + expressions.toString());
         return expressions;
     }
 
+    /**
+     * Transforms single top-level s-expression, variables of the result are resolved (see {@link Resolver})
+     */
+    public static Expression ast(SExpressions.SExpression node) {
+        return Resolver.resolve(transform(node, 0));
+    }
+
     private static Expression transform(SExpressions.SExpression expr, int depth) {
         if (expr instanceof SExpressions.Boolean) {
             return new Expressions.Bool(((SExpressions.Boolean) expr).value);
         } else if (expr instanceof SExpressions.Integer) {
             return new Expressions.Int(((SExpressions.Integer) expr).value);
         } else if (expr instanceof SExpressions.Symbol) {
-            return new Expressions.Variable(((SExpressions.Symbol) expr).name);
+            return new Expressions.Variable(((SExpressions.Symbol) expr).id);
         }
         SExpressions.ListSExpr listExpr = (SExpressions.ListSExpr) expr;
         if (listExpr.getAll().isEmpty()) {
@@ -40,26 +52,19 @@ public class Ast {
         // check first expr
         SExpressions.SExpression firstExpr = listExpr.get(0);
         if (firstExpr instanceof SExpressions.Symbol) {
-            SExpressions.Symbol firstVar = (SExpressions.Symbol) firstExpr;
-            switch (firstVar.name) {
-                case "define": {
-                    return transformToDefine(listExpr, depth);
-                }
-                case "let": {
-                    return transformToLet(listExpr, depth);
-                }
-                case "letrec": {
-                    return transformToLetrec(listExpr, depth);
-                }
-                case "lambda": {
-                    return transformToLambda(listExpr, depth);
-                }
-                case "if": {
-                    return transformToIf(listExpr, depth);
-                }
-                default: {
-                    return transformToApplication(listExpr, depth);
-                }
+            final int keyword = ((SExpressions.Symbol) firstExpr).id;
+            if (keyword == DEFINE) {
+                return transformToDefine(listExpr, depth);
+            } else if (keyword == LET) {
+                return transformToLet(listExpr, depth);
+            } else if (keyword == LETREC) {
+                return transformToLetrec(listExpr, depth);
+            } else if (keyword == LAMBDA) {
+                return transformToLambda(listExpr, depth);
+            } else if (keyword == IF) {
+                return transformToIf(listExpr, depth);
+            } else {
+                return transformToApplication(listExpr, depth);
             }
         } else if (firstExpr instanceof SExpressions.ListSExpr) {
             return transformToApplication(listExpr, depth);
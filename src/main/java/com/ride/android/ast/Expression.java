@@ -15,7 +15,26 @@ public abstract class Expression<T extends Types.Type> {
      */
     public abstract Types.Type infer(Environment env);
 
+    /**
+     * Replaces type of this expression (and of its children) with the exposed one
+     * Must be called after the whole top-level expression is inferred,
+     * because type variables of inner expressions may be bound later
+     */
+    @SuppressWarnings("unchecked")
+    public void exposeTypes(Environment env) {
+        if (type != null) {
+            type = (T) type.expose(env);
+        }
+    }
+
     public T getType() {
         return type;
     }
+
+    /**
+     * Sets type of expression, that is made after type checking (by optimizations), so it is never inferred
+     */
+    public void setType(T type) {
+        this.type = type;
+    }
 }
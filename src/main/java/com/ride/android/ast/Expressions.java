@@ -1,9 +1,11 @@
 package com.ride.android.ast;
 
+import com.ride.android.symbols.Symbols;
 import com.ride.android.types.Environment;
 import com.ride.android.types.Types;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import static com.ride.android.types.Types.bool;
@@ -14,7 +16,7 @@ import static com.ride.android.types.Types.integer;
  */
 public class Expressions {
     public static class Application extends Expression<Types.Type> {
-        private final List<Expression> args;
+        private List<Expression> args;
         public final Expression<Types.TFunction> function;
 
         public Application(Expression<Types.TFunction> function, List<Expression> args) {
@@ -30,6 +32,15 @@ public class Expressions {
             return args;
         }
 
+        /**
+         * Adds args after the written ones, it is done by lambda lifting for free variables of lifted function
+         */
+        public void appendArgs(List<? extends Expression> extraArgs) {
+            List<Expression> result = new ArrayList<>(args);
+            result.addAll(extraArgs);
+            args = result;
+        }
+
         @Override
         public String toString() {
             return "App{" +
@@ -46,24 +57,37 @@ public class Expressions {
                 argsType.add(arg.infer(env));
             }
             Types.Type resultType = env.newvar();
-            Types.TFunction unifiedFunctionType = new Types.TFunction(argsType, resultType);
+            Types.TFunction unifiedFunctionType = Types.func(argsType, resultType);
             if (env.unify(functionType, unifiedFunctionType)) {
                 type = resultType.expose(env);
                 return resultType;
             } else
                 throw new RuntimeException(unifiedFunctionType + " and " + functionType + " cannot be unified");
         }
+
+        @Override
+        public void exposeTypes(Environment env) {
+            super.exposeTypes(env);
+            function.exposeTypes(env);
+            for (Expression arg : args) {
+                arg.exposeTypes(env);
+            }
+        }
     }
 
     public static class Definition extends Expression<Types.TFunction> {
         public final String name;
+        public final int id;
         public final Expression body;
 
         private final List<String> args;
+        private final int[] argIds;
 
         public Definition(String name, List<String> args, Expression body) {
             this.name = name;
+            this.id = Symbols.intern(name);
             this.args = args;
+            this.argIds = ids(args);
             this.body = body;
         }
 
@@ -71,26 +95,51 @@ public class Expressions {
             return args.get(i);
         }
 
+        public int getArgId(int i) {
+            return argIds[i];
+        }
+
+        public int[] getArgIds() {
+            return argIds;
+        }
+
         public List<String> getArgs() {
             return args;
         }
 
+        /**
+         * Definition is recursive: its name is visible in the body with a monomorphic type,
+         * which is generalized after the body is checked (same as letrec)
+         */
         @Override
         public Types.Type infer(Environment environment) {
-            environment.push();
+            environment.enterLevel();
+            Types.Type selfType = environment.newvar();
+            environment.define(id, selfType);
+            environment.pushFrame(argIds);
             List<Types.Type> argsTypes = new ArrayList<>();
-            for (String arg : args) {
+            for (int slot = 0; slot < argIds.length; slot++) {
                 Types.Type argType = environment.newvar();
-                environment.define(arg, argType);
+                environment.defineLocal(slot, argType);
                 argsTypes.add(argType);
             }
-            Types.TFunction resultFunctionType = new Types.TFunction(argsTypes, body.infer(environment));
+            Types.TFunction resultFunctionType = Types.func(argsTypes, body.infer(environment));
+            if (!environment.unify(selfType, resultFunctionType)) {
+                throw new RuntimeException(selfType + " and " + resultFunctionType + " cannot be unified");
+            }
             type = (Types.TFunction) resultFunctionType.expose(environment);
-            environment.pop();
-            environment.define(name, type);
+            environment.popFrame();
+            environment.leaveLevel();
+            environment.define(id, environment.generalize(type));
             return resultFunctionType;
         }
 
+        @Override
+        public void exposeTypes(Environment env) {
+            super.exposeTypes(env);
+            body.exposeTypes(env);
+        }
+
         @Override
         public String toString() {
             return "Def{" +
@@ -105,8 +154,15 @@ public class Expressions {
         public final List<String> args;
         public final Expression body;
 
+        private final int[] argIds;
+        // free variables, as seen where the lambda is created, set by closure conversion
+        private List<Variable> captures = Collections.emptyList();
+        // free variables, that are extra params of the static method, set if lambda is lifted, see LambdaLifter
+        private List<Variable> liftedParams = null;
+
         public Lambda(List<String> args, Expression body) {
             this.args = args;
+            this.argIds = ids(args);
             this.body = body;
         }
 
@@ -114,6 +170,34 @@ public class Expressions {
             return args.get(i);
         }
 
+        public int getArgId(int i) {
+            return argIds[i];
+        }
+
+        public int[] getArgIds() {
+            return argIds;
+        }
+
+        public List<Variable> getCaptures() {
+            return captures;
+        }
+
+        public void setCaptures(List<Variable> captures) {
+            this.captures = captures;
+        }
+
+        public boolean isLifted() {
+            return liftedParams != null;
+        }
+
+        public List<Variable> getLiftedParams() {
+            return liftedParams;
+        }
+
+        public void lift(List<Variable> params) {
+            this.liftedParams = params;
+        }
+
         @Override
         public String toString() {
             return "Lambda{" +
@@ -124,40 +208,66 @@ public class Expressions {
 
         @Override
         public Types.Type infer(Environment environment) {
-            environment.push();
+            environment.pushFrame(argIds);
             List<Types.Type> argsTypes = new ArrayList<>();
-            for (String arg : args) {
+            for (int slot = 0; slot < argIds.length; slot++) {
                 Types.Type argType = environment.newvar();
-                environment.define(arg, argType);
+                environment.defineLocal(slot, argType);
                 argsTypes.add(argType);
             }
-            Types.TFunction resultFunctionType = new Types.TFunction(argsTypes, body.infer(environment));
+            Types.TFunction resultFunctionType = Types.func(argsTypes, body.infer(environment));
             type = (Types.TFunction) resultFunctionType.expose(environment);
-            environment.pop();
+            environment.popFrame();
             return resultFunctionType;
         }
+
+        @Override
+        public void exposeTypes(Environment env) {
+            super.exposeTypes(env);
+            body.exposeTypes(env);
+        }
     }
 
     public static class Let extends Expression {
         public final String var;
+        public final int varId;
         public final Expression varExpr;
+        private final int[] frameIds;
         public final Expression body;
 
         public Let(String var, Expression varExpr, Expression body) {
             this.var = var;
+            this.varId = Symbols.intern(var);
+            this.frameIds = new int[]{varId};
             this.varExpr = varExpr;
             this.body = body;
         }
 
+        /**
+         * Let body is evaluated in a frame with the single slot for let variable
+         */
+        public int[] getFrameIds() {
+            return frameIds;
+        }
+
         @Override
         public Types.Type infer(Environment env) {
+            env.enterLevel();
             Types.Type varExprType = varExpr.infer(env);
-            return env.scoped(scopedEnv -> {
-                scopedEnv.define(var, scopedEnv.generalize(varExprType));
-                Types.Type infer = body.infer(scopedEnv);
-                type = infer.expose(scopedEnv);
-                return infer;
-            });
+            env.leaveLevel();
+            env.pushFrame(frameIds);
+            env.defineLocal(0, env.generalize(varExprType));
+            Types.Type infer = body.infer(env);
+            type = infer.expose(env);
+            env.popFrame();
+            return infer;
+        }
+
+        @Override
+        public void exposeTypes(Environment env) {
+            super.exposeTypes(env);
+            varExpr.exposeTypes(env);
+            body.exposeTypes(env);
         }
 
         @Override
@@ -172,35 +282,55 @@ public class Expressions {
 
     public static class LetRec extends Expression {
         public final String var;
+        public final int varId;
         public final Expression varExpr;
+        private final int[] frameIds;
         public final Expression body;
 
         public LetRec(String var, Expression varExpr, Expression body) {
             this.var = var;
+            this.varId = Symbols.intern(var);
+            this.frameIds = new int[]{varId};
             this.varExpr = varExpr;
             this.body = body;
         }
 
+        /**
+         * Both variable expression and body are evaluated in a frame with the single slot for letrec variable
+         */
+        public int[] getFrameIds() {
+            return frameIds;
+        }
+
         @Override
         public Types.Type infer(Environment env) {
-            return env.scoped(scopedEnv -> {
-                Types.Type varTmpType = scopedEnv.newvar();
-                scopedEnv.define(var, varTmpType);
-
-                Types.Type varType = varExpr.infer(scopedEnv);
-                if (scopedEnv.unify(varTmpType, varType)) {
-                    scopedEnv.define(var, scopedEnv.generalize(varType));
-                    Types.Type bodyType = body.infer(scopedEnv);
-
-                    // ADDITIONAL PASS SO REC VAR GETS THE RIGHT TYPE
-                    varExpr.infer(scopedEnv);
+            env.pushFrame(frameIds);
+            env.enterLevel();
+            Types.Type varTmpType = env.newvar();
+            env.defineLocal(0, varTmpType);
+
+            Types.Type varType = varExpr.infer(env);
+            if (env.unify(varTmpType, varType)) {
+                env.leaveLevel();
+                env.defineLocal(0, env.generalize(varType));
+                Types.Type bodyType = body.infer(env);
+
+                // ADDITIONAL PASS SO REC VAR GETS THE RIGHT TYPE
+                varExpr.infer(env);
+
+                type = bodyType.expose(env);
+                env.popFrame();
+                return bodyType;
+            } else {
+                throw new RuntimeException(varTmpType + " and " + varType + " cannot be unified");
+            }
+        }
 
-                    type = bodyType.expose(scopedEnv);
-                    return bodyType;
-                } else {
-                    throw new RuntimeException(varTmpType + " and " + varType + " cannot be unified");
-                }
-            });
+        @Override
+        public void exposeTypes(Environment env) {
+            super.exposeTypes(env);
+            varExpr.exposeTypes(env);
+            body.exposeTypes(env);
         }
 
         @Override
@@ -234,17 +364,25 @@ public class Expressions {
         @Override
         public Types.Type infer(Environment env) {
             Types.Type conditionType = condition.infer(env);
-            if (!conditionType.expose(env).equals(bool())) {
+            if (!env.unify(conditionType, bool())) {
                 throw new RuntimeException("Condition must be boolean");
             }
             Types.Type ifType = ifBranch.infer(env);
             Types.Type elseType = elseBranch.infer(env);
-            if (!ifType.expose(env).equals(elseType.expose(env))) {
+            if (!env.unify(ifType, elseType)) {
                 throw new RuntimeException("Condition branches must have same types");
             }
             type = ifType.expose(env);
             return ifType;
         }
+
+        @Override
+        public void exposeTypes(Environment env) {
+            super.exposeTypes(env);
+            condition.exposeTypes(env);
+            ifBranch.exposeTypes(env);
+            elseBranch.exposeTypes(env);
+        }
     }
 
     public static abstract class Literal extends Expression<Types.TLiteral> {
@@ -287,10 +425,69 @@ public class Expressions {
     }
 
     public static class Variable extends Expression {
+        public static final int CAPTURED = -3;
+        public static final int UNRESOLVED = -2;
+        public static final int GLOBAL = -1;
+
+        public final int id;
         public final String name;
 
+        // set by Resolver: GLOBAL or count of frames between the use and the binder
+        // closure conversion rebinds free variables of lambdas to CAPTURED, slot is then the index of capture
+        private int depth = UNRESOLVED;
+        private int slot = -1;
+
         public Variable(String symbol) {
-            this.name = symbol;
+            this(Symbols.intern(symbol));
+        }
+
+        public Variable(int id) {
+            this.id = id;
+            this.name = Symbols.name(id);
+        }
+
+        /**
+         * Same variable, not resolved, but with the type
+         */
+        public Variable copy() {
+            Variable copy = new Variable(id);
+            copy.type = type;
+            return copy;
+        }
+
+        public void bindLocal(int depth, int slot) {
+            this.depth = depth;
+            this.slot = slot;
+        }
+
+        public void bindGlobal() {
+            this.depth = GLOBAL;
+            this.slot = -1;
+        }
+
+        public void bindCaptured(int index) {
+            this.depth = CAPTURED;
+            this.slot = index;
+        }
+
+        public int getDepth() {
+            return depth;
+        }
+
+        public int getSlot() {
+            return slot;
+        }
+
+        public boolean isGlobal() {
+            return depth == GLOBAL;
+        }
+
+        public boolean isResolved() {
+            return depth != UNRESOLVED;
+        }
+
+        public boolean isCaptured() {
+            return depth == CAPTURED;
         }
 
         @Override
@@ -300,7 +497,16 @@ public class Expressions {
 
         @Override
         public Types.Type infer(Environment environment) {
-            Types.TScheme varType = environment.lookup(name);
+            Types.TScheme varType;
+            if (depth == GLOBAL) {
+                varType = environment.lookupGlobal(id);
+            } else if (depth == UNRESOLVED) {
+                varType = environment.lookup(id);
+            } else if (depth == CAPTURED) {
+                throw new IllegalStateException(name + " is captured, closure conversion must be done after type checking");
+            } else {
+                varType = environment.lookupLocal(depth, slot);
+            }
             if (varType == null) {
                 throw new RuntimeException(name + " is not found in environment");
             }
@@ -308,4 +514,12 @@ public class Expressions {
             return type;
         }
     }
+
+    private static int[] ids(List<String> names) {
+        int[] ids = new int[names.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = Symbols.intern(names.get(i));
+        }
+        return ids;
+    }
 }
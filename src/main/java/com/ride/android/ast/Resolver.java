@@ -0,0 +1,124 @@
+package com.ride.android.ast;
+
+import com.ride.android.symbols.ScopedTable;
+
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Binds every variable of AST to the place where its value lives
+ * <p>
+ * Binders (function args, let and letrec variables) open frames, one slot per bound symbol.
+ * Variable bound by an enclosing binder gets (depth, slot) pair, where depth counts frames between the use and the binder.
+ * Any other variable is global (top-level definition or builtin) and is addressed by its symbol id.
+ * <p>
+ * Type checker and generator lay out their environments the same way (see {@link com.ride.android.symbols.Frames}),
+ * so they read variables without any name lookup.
+ * Pass can be run again on a transformed tree, resolution is simply overwritten.
+ */
+public class Resolver {
+    private static final class Position {
+        final int frame;
+        final int slot;
+
+        Position(int frame, int slot) {
+            this.frame = frame;
+            this.slot = slot;
+        }
+    }
+
+    private final ScopedTable<Position> scope = new ScopedTable<>();
+    private int frames = 0;
+    // ids of referenced globals
+    private final BitSet globals = new BitSet();
+
+    /**
+     * Main method
+     * Input is top-level expression
+     * Output is the same expression with resolved variables
+     */
+    public static <T extends Expression> T resolve(T expression) {
+        new Resolver().visit(expression);
+        return expression;
+    }
+
+    /**
+     * Resolves expression and returns symbol ids of globals it references
+     */
+    public static BitSet resolveGlobals(Expression expression) {
+        Resolver resolver = new Resolver();
+        resolver.visit(expression);
+        return resolver.globals;
+    }
+
+    public static List<Expression> resolve(List<Expression> expressions) {
+        for (Expression expression : expressions) {
+            resolve(expression);
+        }
+        return expressions;
+    }
+
+    private void visit(Expression expression) {
+        if (expression instanceof Expressions.Variable) {
+            visitVariable((Expressions.Variable) expression);
+        } else if (expression instanceof Expressions.Application) {
+            Expressions.Application application = (Expressions.Application) expression;
+            visit(application.function);
+            for (Expression arg : application.getArgs()) {
+                visit(arg);
+            }
+        } else if (expression instanceof Expressions.IfExpr) {
+            Expressions.IfExpr ifExpr = (Expressions.IfExpr) expression;
+            visit(ifExpr.condition);
+            visit(ifExpr.ifBranch);
+            visit(ifExpr.elseBranch);
+        } else if (expression instanceof Expressions.Definition) {
+            Expressions.Definition definition = (Expressions.Definition) expression;
+            openFrame(definition.getArgIds());
+            visit(definition.body);
+            closeFrame();
+        } else if (expression instanceof Expressions.Lambda) {
+            Expressions.Lambda lambda = (Expressions.Lambda) expression;
+            openFrame(lambda.getArgIds());
+            visit(lambda.body);
+            closeFrame();
+        } else if (expression instanceof Expressions.Let) {
+            Expressions.Let let = (Expressions.Let) expression;
+            visit(let.varExpr);
+            openFrame(let.getFrameIds());
+            visit(let.body);
+            closeFrame();
+        } else if (expression instanceof Expressions.LetRec) {
+            Expressions.LetRec letRec = (Expressions.LetRec) expression;
+            openFrame(letRec.getFrameIds());
+            visit(letRec.varExpr);
+            visit(letRec.body);
+            closeFrame();
+        } else if (!(expression instanceof Expressions.Literal)) {
+            throw new RuntimeException("Unknown expression to resolve: " + expression);
+        }
+    }
+
+    private void visitVariable(Expressions.Variable variable) {
+        Position position = scope.lookup(variable.id);
+        if (position == null) {
+            variable.bindGlobal();
+            globals.set(variable.id);
+        } else {
+            variable.bindLocal(frames - 1 - position.frame, position.slot);
+        }
+    }
+
+    private void openFrame(int[] ids) {
+        scope.push();
+        for (int slot = 0; slot < ids.length; slot++) {
+            scope.define(ids[slot], new Position(frames, slot));
+        }
+        frames++;
+    }
+
+    private void closeFrame() {
+        frames--;
+        scope.pop();
+    }
+}
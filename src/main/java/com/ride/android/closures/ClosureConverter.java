@@ -0,0 +1,162 @@
+package com.ride.android.closures;
+
+import com.ride.android.ast.Expression;
+import com.ride.android.ast.Expressions;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Closure conversion
+ * <p>
+ * Finds free variables of every lambda: locals, that are bound outside of it (globals are never captured).
+ * Each of them becomes a capture of the lambda: its use inside is rebound to the capture index,
+ * and the lambda gets the list of captured variables, resolved in the scope where the lambda is created
+ * (so generator copies their values into the closure object).
+ * Variable, that is free in a nested lambda, is captured by all lambdas in between.
+ * <p>
+ * Lambda bound by letrec refers to itself without a capture (it is "this" of the closure object).
+ * Lifted lambdas (see {@link LambdaLifter}) are static methods, so they are never captured too.
+ * <p>
+ * Pass must be run after type checking, on resolved tree (see {@link com.ride.android.ast.Resolver}).
+ */
+public final class ClosureConverter {
+    private static final class Scope {
+        final Scope outer;
+        // frame of lambda args, frames below are outside of the lambda
+        final int frame;
+        // frame of letrec, which binds the lambda to its own name, or -1
+        final int selfFrame;
+        final List<Expressions.Variable> captures = new ArrayList<>();
+        // (frame, slot) of captured variable -> capture index
+        final Map<Long, Integer> captureIndices = new HashMap<>();
+
+        Scope(Scope outer, int frame, int selfFrame) {
+            this.outer = outer;
+            this.frame = frame;
+            this.selfFrame = selfFrame;
+        }
+
+        boolean isFree(int variableFrame) {
+            return variableFrame < frame && variableFrame != selfFrame;
+        }
+    }
+
+    private Scope scope = null;
+    private int frames = 0;
+    // frame of letrec, whose var expression is the lambda to be visited next
+    private int letRecFrame = -1;
+    // frames of let and letrec, that bind lifted lambdas, every pushed frame sets or clears its bit
+    private final BitSet liftedFrames = new BitSet();
+
+    private ClosureConverter() {
+    }
+
+    /**
+     * Main method
+     * Input is resolved and typed top-level expression
+     * Output is the same expression with captures of its lambdas
+     */
+    public static <T extends Expression> T convert(T expression) {
+        new ClosureConverter().visit(expression);
+        return expression;
+    }
+
+    private void visit(Expression expression) {
+        if (expression instanceof Expressions.Variable) {
+            visitVariable((Expressions.Variable) expression);
+        } else if (expression instanceof Expressions.Application) {
+            Expressions.Application application = (Expressions.Application) expression;
+            visit(application.function);
+            for (Expression arg : application.getArgs()) {
+                visit(arg);
+            }
+        } else if (expression instanceof Expressions.IfExpr) {
+            Expressions.IfExpr ifExpr = (Expressions.IfExpr) expression;
+            visit(ifExpr.condition);
+            visit(ifExpr.ifBranch);
+            visit(ifExpr.elseBranch);
+        } else if (expression instanceof Expressions.Definition) {
+            frames++;
+            liftedFrames.clear(frames - 1);
+            visit(((Expressions.Definition) expression).body);
+            frames--;
+        } else if (expression instanceof Expressions.Lambda) {
+            visitLambda((Expressions.Lambda) expression);
+        } else if (expression instanceof Expressions.Let) {
+            Expressions.Let let = (Expressions.Let) expression;
+            visit(let.varExpr);
+            frames++;
+            liftedFrames.set(frames - 1, isLifted(let.varExpr));
+            visit(let.body);
+            frames--;
+        } else if (expression instanceof Expressions.LetRec) {
+            Expressions.LetRec letRec = (Expressions.LetRec) expression;
+            frames++;
+            liftedFrames.set(frames - 1, isLifted(letRec.varExpr));
+            if (letRec.varExpr instanceof Expressions.Lambda) {
+                letRecFrame = frames - 1;
+            }
+            visit(letRec.varExpr);
+            visit(letRec.body);
+            frames--;
+        } else if (!(expression instanceof Expressions.Literal)) {
+            throw new RuntimeException("Unknown expression to convert: " + expression);
+        }
+    }
+
+    private static boolean isLifted(Expression varExpr) {
+        return varExpr instanceof Expressions.Lambda && ((Expressions.Lambda) varExpr).isLifted();
+    }
+
+    private void visitLambda(Expressions.Lambda lambda) {
+        // only the lambda right in letrec var expression is bound to the letrec name
+        int selfFrame = letRecFrame;
+        letRecFrame = -1;
+
+        scope = new Scope(scope, frames, selfFrame);
+        frames++;
+        // frame may be left by lifted let, args are never lifted
+        liftedFrames.clear(frames - 1);
+        visit(lambda.body);
+        frames--;
+        lambda.setCaptures(scope.captures);
+        scope = scope.outer;
+    }
+
+    private void visitVariable(Expressions.Variable variable) {
+        if (variable.isGlobal() || !variable.isResolved() || variable.isCaptured() || scope == null) {
+            return;
+        }
+        int variableFrame = frames - 1 - variable.getDepth();
+        if (scope.isFree(variableFrame) && !liftedFrames.get(variableFrame)) {
+            variable.bindCaptured(capture(scope, variableFrame, variable));
+        }
+    }
+
+    /**
+     * Returns index of the variable in captures of the scope, variable is captured by outer scopes too, if needed
+     */
+    private static int capture(Scope scope, int variableFrame, Expressions.Variable variable) {
+        long key = ((long) variableFrame << 32) | variable.getSlot();
+        Integer index = scope.captureIndices.get(key);
+        if (index != null) {
+            return index;
+        }
+
+        // captured value is read where the lambda is created, just outside of its frame
+        Expressions.Variable source = variable.copy();
+        if (scope.outer != null && scope.outer.isFree(variableFrame)) {
+            source.bindCaptured(capture(scope.outer, variableFrame, variable));
+        } else {
+            source.bindLocal(scope.frame - 1 - variableFrame, variable.getSlot());
+        }
+        index = scope.captures.size();
+        scope.captures.add(source);
+        scope.captureIndices.put(key, index);
+        return index;
+    }
+}
@@ -1,4 +1,324 @@
 package com.ride.android.closures;
 
-public class LambdaLift {
+import com.ride.android.ast.Expression;
+import com.ride.android.ast.Expressions;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Lambda lifting
+ * <p>
+ * Lambda bound by let or letrec, whose variable is only called (with all args) and never used as a value,
+ * does not escape. Such lambda is lifted: it becomes a static method, its free variables become extra params,
+ * and every call of it gets values of the free variables as extra args.
+ * So the call is a single invoke-static and no closure object is allocated.
+ * Calls of other lifted functions are not free variables: they are static calls, wherever they are.
+ * <p>
+ * Escaping lambdas are left as they are, they become closure objects (see {@link ClosureConverter}).
+ * <p>
+ * Pass must be run after type checking, on resolved tree, and before closure conversion.
+ */
+public final class LambdaLifter {
+    /**
+     * Lifted lambda and its free variables, as (frame, slot) of their binders
+     */
+    private static final class LiftedFunction {
+        final Expressions.Lambda lambda;
+        // null, while body of the lambda is lifted
+        List<long[]> free = null;
+        // self calls, found while body is lifted, they get free variables when those are known
+        final List<Expressions.Application> selfCalls = new ArrayList<>();
+        final List<Integer> selfCallFrames = new ArrayList<>();
+        // body calls an enclosing function, that is being lifted
+        boolean callsEnclosing = false;
+
+        LiftedFunction(Expressions.Lambda lambda) {
+            this.lambda = lambda;
+        }
+    }
+
+    // binder of every frame, from the outermost one: definition, lambda, let or letrec
+    private final List<Expression> binders = new ArrayList<>();
+    // let and letrec, whose lambda is used as a value
+    private final Set<Expression> escaping = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final Map<Expression, LiftedFunction> lifted = new IdentityHashMap<>();
+    // functions, whose bodies are being lifted, innermost last
+    private final List<LiftedFunction> lifting = new ArrayList<>();
+    private boolean resolved = true;
+
+    private LambdaLifter() {
+    }
+
+    /**
+     * Main method
+     * Input is resolved and typed top-level expression
+     * Output is the same expression, with lifted lambdas marked, see {@link Expressions.Lambda#isLifted()}
+     */
+    public static <T extends Expression> T lift(T expression) {
+        LambdaLifter lifter = new LambdaLifter();
+        lifter.findEscaping(expression);
+        if (lifter.resolved) {
+            lifter.visit(expression);
+        }
+        return expression;
+    }
+
+    private void findEscaping(Expression expression) {
+        if (expression instanceof Expressions.Variable) {
+            Expression binder = binderOf((Expressions.Variable) expression);
+            if (binder != null) {
+                escaping.add(binder);
+            }
+        } else if (expression instanceof Expressions.Application) {
+            Expressions.Application application = (Expressions.Application) expression;
+            if (application.function instanceof Expressions.Variable) {
+                Expression binder = binderOf((Expressions.Variable) application.function);
+                if (binder != null && arity(binder) != application.getArgs().size()) {
+                    escaping.add(binder);
+                }
+            } else {
+                findEscaping(application.function);
+            }
+            for (Expression arg : application.getArgs()) {
+                findEscaping(arg);
+            }
+        } else if (expression instanceof Expressions.IfExpr) {
+            Expressions.IfExpr ifExpr = (Expressions.IfExpr) expression;
+            findEscaping(ifExpr.condition);
+            findEscaping(ifExpr.ifBranch);
+            findEscaping(ifExpr.elseBranch);
+        } else if (expression instanceof Expressions.Definition) {
+            binders.add(expression);
+            findEscaping(((Expressions.Definition) expression).body);
+            binders.remove(binders.size() - 1);
+        } else if (expression instanceof Expressions.Lambda) {
+            binders.add(expression);
+            findEscaping(((Expressions.Lambda) expression).body);
+            binders.remove(binders.size() - 1);
+        } else if (expression instanceof Expressions.Let) {
+            Expressions.Let let = (Expressions.Let) expression;
+            findEscaping(let.varExpr);
+            binders.add(let);
+            findEscaping(let.body);
+            binders.remove(binders.size() - 1);
+        } else if (expression instanceof Expressions.LetRec) {
+            Expressions.LetRec letRec = (Expressions.LetRec) expression;
+            binders.add(letRec);
+            findEscaping(letRec.varExpr);
+            findEscaping(letRec.body);
+            binders.remove(binders.size() - 1);
+        } else if (!(expression instanceof Expressions.Literal)) {
+            throw new RuntimeException("Unknown expression to lift: " + expression);
+        }
+    }
+
+    /**
+     * Returns let or letrec, that binds the variable to a lambda, or null
+     */
+    private Expression binderOf(Expressions.Variable variable) {
+        if (!variable.isResolved()) {
+            // variable may refer to any binder, nothing can be lifted
+            resolved = false;
+            return null;
+        }
+        if (variable.isGlobal() || variable.isCaptured()) {
+            return null;
+        }
+        Expression binder = binders.get(binders.size() - 1 - variable.getDepth());
+        return lambdaOf(binder) != null ? binder : null;
+    }
+
+    private static Expressions.Lambda lambdaOf(Expression binder) {
+        Expression varExpr = null;
+        if (binder instanceof Expressions.Let) {
+            varExpr = ((Expressions.Let) binder).varExpr;
+        } else if (binder instanceof Expressions.LetRec) {
+            varExpr = ((Expressions.LetRec) binder).varExpr;
+        }
+        return varExpr instanceof Expressions.Lambda ? (Expressions.Lambda) varExpr : null;
+    }
+
+    private static int arity(Expression binder) {
+        return lambdaOf(binder).args.size();
+    }
+
+    private void visit(Expression expression) {
+        if (expression instanceof Expressions.Application) {
+            visitApplication((Expressions.Application) expression);
+        } else if (expression instanceof Expressions.IfExpr) {
+            Expressions.IfExpr ifExpr = (Expressions.IfExpr) expression;
+            visit(ifExpr.condition);
+            visit(ifExpr.ifBranch);
+            visit(ifExpr.elseBranch);
+        } else if (expression instanceof Expressions.Definition) {
+            binders.add(expression);
+            visit(((Expressions.Definition) expression).body);
+            binders.remove(binders.size() - 1);
+        } else if (expression instanceof Expressions.Lambda) {
+            binders.add(expression);
+            visit(((Expressions.Lambda) expression).body);
+            binders.remove(binders.size() - 1);
+        } else if (expression instanceof Expressions.Let) {
+            Expressions.Let let = (Expressions.Let) expression;
+            if (isLiftable(let)) {
+                liftLambda(let);
+            } else {
+                visit(let.varExpr);
+            }
+            binders.add(let);
+            visit(let.body);
+            binders.remove(binders.size() - 1);
+        } else if (expression instanceof Expressions.LetRec) {
+            Expressions.LetRec letRec = (Expressions.LetRec) expression;
+            binders.add(letRec);
+            if (isLiftable(letRec)) {
+                liftLambda(letRec);
+            } else {
+                visit(letRec.varExpr);
+            }
+            visit(letRec.body);
+            binders.remove(binders.size() - 1);
+        }
+    }
+
+    private boolean isLiftable(Expression binder) {
+        return lambdaOf(binder) != null && !escaping.contains(binder);
+    }
+
+    private void visitApplication(Expressions.Application application) {
+        visit(application.function);
+        for (Expression arg : application.getArgs()) {
+            visit(arg);
+        }
+        if (!(application.function instanceof Expressions.Variable)) {
+            return;
+        }
+        Expressions.Variable function = (Expressions.Variable) application.function;
+        if (function.isGlobal()) {
+            return;
+        }
+        LiftedFunction liftedFunction = lifted.get(binders.get(binders.size() - 1 - function.getDepth()));
+        if (liftedFunction == null) {
+            return;
+        }
+        if (liftedFunction.free == null) {
+            // self call, free variables are not known yet
+            liftedFunction.selfCalls.add(application);
+            liftedFunction.selfCallFrames.add(binders.size());
+            for (int i = lifting.indexOf(liftedFunction) + 1; i < lifting.size(); i++) {
+                lifting.get(i).callsEnclosing = true;
+            }
+            return;
+        }
+
+        // free variables are read where the call is
+        List<Expressions.Variable> params = liftedFunction.lambda.getLiftedParams();
+        List<Expressions.Variable> extraArgs = new ArrayList<>();
+        for (int i = 0; i < params.size(); i++) {
+            long[] free = liftedFunction.free.get(i);
+            Expressions.Variable arg = params.get(i).copy();
+            arg.bindLocal(binders.size() - 1 - (int) free[0], (int) free[1]);
+            extraArgs.add(arg);
+        }
+        application.appendArgs(extraArgs);
+    }
+
+    private void liftLambda(Expression binder) {
+        Expressions.Lambda lambda = lambdaOf(binder);
+        LiftedFunction liftedFunction = new LiftedFunction(lambda);
+        lifted.put(binder, liftedFunction);
+
+        int frame = binders.size();
+        binders.add(lambda);
+        lifting.add(liftedFunction);
+        visit(lambda.body);
+        lifting.remove(lifting.size() - 1);
+        if (liftedFunction.callsEnclosing) {
+            // body calls enclosing lifted function, whose free variables are not known yet
+            // (they would be free variables of this lambda too), so it is left as a closure
+            lifted.remove(binder);
+            binders.remove(binders.size() - 1);
+            return;
+        }
+
+        // free variables of the body (also the ones, that were passed to lifted calls inside it) become params
+        List<long[]> free = new ArrayList<>();
+        List<Expressions.Variable> params = new ArrayList<>();
+        bindFree(lambda.body, frame, lambda.args.size(), free, params, new HashMap<>());
+        liftedFunction.free = free;
+        lambda.lift(params);
+
+        for (int i = 0; i < liftedFunction.selfCalls.size(); i++) {
+            int callFrames = liftedFunction.selfCallFrames.get(i);
+            List<Expressions.Variable> extraArgs = new ArrayList<>();
+            for (Expressions.Variable param : params) {
+                Expressions.Variable arg = param.copy();
+                arg.bindLocal(callFrames - 1 - frame, lambda.args.size() + extraArgs.size());
+                extraArgs.add(arg);
+            }
+            liftedFunction.selfCalls.get(i).appendArgs(extraArgs);
+        }
+        binders.remove(binders.size() - 1);
+    }
+
+    /**
+     * Rebinds free variables of lifted lambda, that has args at the frame, to its extra params
+     * Frames inside the lambda are pushed to binders, as usual
+     */
+    private void bindFree(Expression expression, int frame, int arity,
+                          List<long[]> free, List<Expressions.Variable> params, Map<Long, Integer> indices) {
+        if (expression instanceof Expressions.Variable) {
+            Expressions.Variable variable = (Expressions.Variable) expression;
+            if (variable.isGlobal() || variable.isCaptured()) {
+                return;
+            }
+            int variableFrame = binders.size() - 1 - variable.getDepth();
+            if (variableFrame >= frame || lifted.containsKey(binders.get(variableFrame))) {
+                // bound inside, or it is a call of lifted function
+                return;
+            }
+            long key = ((long) variableFrame << 32) | variable.getSlot();
+            Integer index = indices.get(key);
+            if (index == null) {
+                index = params.size();
+                indices.put(key, index);
+                free.add(new long[]{variableFrame, variable.getSlot()});
+                params.add(variable.copy());
+            }
+            variable.bindLocal(binders.size() - 1 - frame, arity + index);
+        } else if (expression instanceof Expressions.Application) {
+            Expressions.Application application = (Expressions.Application) expression;
+            bindFree(application.function, frame, arity, free, params, indices);
+            for (Expression arg : application.getArgs()) {
+                bindFree(arg, frame, arity, free, params, indices);
+            }
+        } else if (expression instanceof Expressions.IfExpr) {
+            Expressions.IfExpr ifExpr = (Expressions.IfExpr) expression;
+            bindFree(ifExpr.condition, frame, arity, free, params, indices);
+            bindFree(ifExpr.ifBranch, frame, arity, free, params, indices);
+            bindFree(ifExpr.elseBranch, frame, arity, free, params, indices);
+        } else if (expression instanceof Expressions.Lambda) {
+            binders.add(expression);
+            bindFree(((Expressions.Lambda) expression).body, frame, arity, free, params, indices);
+            binders.remove(binders.size() - 1);
+        } else if (expression instanceof Expressions.Let) {
+            Expressions.Let let = (Expressions.Let) expression;
+            bindFree(let.varExpr, frame, arity, free, params, indices);
+            binders.add(let);
+            bindFree(let.body, frame, arity, free, params, indices);
+            binders.remove(binders.size() - 1);
+        } else if (expression instanceof Expressions.LetRec) {
+            Expressions.LetRec letRec = (Expressions.LetRec) expression;
+            binders.add(letRec);
+            bindFree(letRec.varExpr, frame, arity, free, params, indices);
+            bindFree(letRec.body, frame, arity, free, params, indices);
+            binders.remove(binders.size() - 1);
+        }
+    }
 }
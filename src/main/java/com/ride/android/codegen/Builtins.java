@@ -2,13 +2,14 @@ package com.ride.android.codegen;
 
 import com.android.dx.Comparison;
 import com.android.dx.Label;
-import com.android.dx.MethodId;
 import com.android.dx.TypeId;
 
 /**
  * Contains builtins for our language, nothing unusual
  * <p>
- * Worth mentioning - all functions here are implemented with lambdas, so most of the code is boxing/unboxing routine
+ * Builtin is registered as a delegate, that generates the operation on primitive registers.
+ * Direct calls are generated in place by the delegate, function object (lambda class and its static field)
+ * is made from the same delegate, only when builtin is passed as a value (see {@link Generator.BuiltinEntry}).
  */
 public class Builtins {
 
@@ -21,65 +22,19 @@ public class Builtins {
                                          final String realName,
                                          final String alias,
                                          final OperationDelegate delegate) {
-        TypeId numberType = TypeId.get(Number.class);
-        MethodId intValueMethod = numberType.getMethod(TypeId.INT, "intValue");
-
-        Module.ModuleDefinition moduleDefinition = module.makeDefine(realName, TypeId.OBJECT, TypeId.OBJECT, TypeId.OBJECT);
-        FunctionCode applyCode = moduleDefinition.lambdaCode.applyCode;
-        // params
-        ParamLocal param = applyCode.getParam(0, TypeId.OBJECT);
-        ParamLocal param2 = applyCode.getParam(1, TypeId.OBJECT);
-
-        // locals
-        LocalWrapper resultObj = applyCode.getOrCreateLocal(0, TypeId.OBJECT);
-        LocalWrapper castedParam = applyCode.getOrCreateLocal(1, numberType);
-        LocalWrapper castedParam2 = applyCode.getOrCreateLocal(2, numberType);
-        LocalWrapper result = applyCode.getOrCreateLocal(3, TypeId.INT);
-        LocalWrapper arg1 = applyCode.getOrCreateLocal(4, TypeId.INT);
-        LocalWrapper arg2 = applyCode.getOrCreateLocal(5, TypeId.INT);
-
-        applyCode.cast(castedParam, param);
-        applyCode.cast(castedParam2, param2);
-        applyCode.invokeVirtual(intValueMethod, arg1, castedParam);
-        applyCode.invokeVirtual(intValueMethod, arg2, castedParam2);
-        delegate.apply(applyCode, result, arg1, arg2);
-        applyCode.call(Module.METHOD_INT_VALUE_OF, resultObj, result);
-        applyCode.returnValue(resultObj);
-
-        baseEnvironment.add(alias, new Generator.DefinitionEntry(moduleDefinition.definitionField));
+        baseEnvironment.add(alias, new Generator.BuiltinEntry(module, realName, delegate,
+                TypeId.INT, TypeId.INT, null));
     }
 
     private static void initComparisonOp(final CodegenEnvironment baseEnvironment,
                                          final Module module,
                                          final String realName,
                                          final String alias,
-                                         final OperationDelegate delegate) {
-        TypeId numberType = TypeId.get(Number.class);
-        MethodId intValueMethod = numberType.getMethod(TypeId.INT, "intValue");
-
-        Module.ModuleDefinition moduleDefinition = module.makeDefine(realName, TypeId.OBJECT, TypeId.OBJECT, TypeId.OBJECT);
-        FunctionCode applyCode = moduleDefinition.lambdaCode.applyCode;
-        // params
-        ParamLocal param = applyCode.getParam(0, TypeId.OBJECT);
-        ParamLocal param2 = applyCode.getParam(1, TypeId.OBJECT);
-
-        // locals
-        LocalWrapper resultObj = applyCode.getOrCreateLocal(0, TypeId.OBJECT);
-        LocalWrapper castedParam = applyCode.getOrCreateLocal(1, numberType);
-        LocalWrapper castedParam2 = applyCode.getOrCreateLocal(2, numberType);
-        LocalWrapper result = applyCode.getOrCreateLocal(3, TypeId.BOOLEAN);
-        LocalWrapper arg1 = applyCode.getOrCreateLocal(4, TypeId.INT);
-        LocalWrapper arg2 = applyCode.getOrCreateLocal(5, TypeId.INT);
-
-        applyCode.cast(castedParam, param);
-        applyCode.cast(castedParam2, param2);
-        applyCode.invokeVirtual(intValueMethod, arg1, castedParam);
-        applyCode.invokeVirtual(intValueMethod, arg2, castedParam2);
-        delegate.apply(applyCode, result, arg1, arg2);
-        applyCode.call(Module.METHOD_BOOLEAN_VALUE_OF, resultObj, result);
-        applyCode.returnValue(resultObj);
-
-        baseEnvironment.add(alias, new Generator.DefinitionEntry(moduleDefinition.definitionField));
+                                         final Comparison comparison) {
+        OperationDelegate delegate = (functionCode, target, args) ->
+                generateComparison(functionCode, target, comparison, args[0], args[1]);
+        baseEnvironment.add(alias, new Generator.BuiltinEntry(module, realName, delegate,
+                TypeId.INT, TypeId.BOOLEAN, comparison));
     }
 
     private static void initLogicalOp(final CodegenEnvironment baseEnvironment,
@@ -87,29 +42,8 @@ public class Builtins {
                                       final String realName,
                                       final String alias,
                                       final OperationDelegate delegate) {
-        Module.ModuleDefinition moduleDefinition = module.makeDefine(realName, TypeId.OBJECT, TypeId.OBJECT, TypeId.OBJECT);
-        FunctionCode applyCode = moduleDefinition.lambdaCode.applyCode;
-        // params
-        ParamLocal param = applyCode.getParam(0, TypeId.OBJECT);
-        ParamLocal param2 = applyCode.getParam(1, TypeId.OBJECT);
-
-        // locals
-        LocalWrapper resultObj = applyCode.getOrCreateLocal(0, TypeId.OBJECT);
-        LocalWrapper castedParam = applyCode.getOrCreateLocal(1, Module.BOXED_BOOLEAN);
-        LocalWrapper castedParam2 = applyCode.getOrCreateLocal(2, Module.BOXED_BOOLEAN);
-        LocalWrapper result = applyCode.getOrCreateLocal(3, TypeId.BOOLEAN);
-        LocalWrapper arg1 = applyCode.getOrCreateLocal(4, TypeId.BOOLEAN);
-        LocalWrapper arg2 = applyCode.getOrCreateLocal(5, TypeId.BOOLEAN);
-
-        applyCode.cast(castedParam, param);
-        applyCode.cast(castedParam2, param2);
-        applyCode.invokeVirtual(Module.METHOD_BOOLEAN_VALUE, arg1, castedParam);
-        applyCode.invokeVirtual(Module.METHOD_BOOLEAN_VALUE, arg2, castedParam2);
-        delegate.apply(applyCode, result, arg1, arg2);
-        applyCode.call(Module.METHOD_BOOLEAN_VALUE_OF, resultObj, result);
-        applyCode.returnValue(resultObj);
-
-        baseEnvironment.add(alias, new Generator.DefinitionEntry(moduleDefinition.definitionField));
+        baseEnvironment.add(alias, new Generator.BuiltinEntry(module, realName, delegate,
+                TypeId.BOOLEAN, TypeId.BOOLEAN, null));
     }
 
     static void initBuiltins(final CodegenEnvironment baseEnvironment, final Module module) {
@@ -124,18 +58,12 @@ public class Builtins {
         initArithmeticOp(baseEnvironment, module, "remainder", "%",
                 (functionCode, target, args) -> functionCode.remainder(target, args[0], args[1]));
 
-        initComparisonOp(baseEnvironment, module, "ne", "!=",
-                (functionCode, target, args) -> generateComparison(functionCode, target, Comparison.NE, args[0], args[1]));
-        initComparisonOp(baseEnvironment, module, "eq", "==",
-                (functionCode, target, args) -> generateComparison(functionCode, target, Comparison.EQ, args[0], args[1]));
-        initComparisonOp(baseEnvironment, module, "ge", ">=",
-                (functionCode, target, args) -> generateComparison(functionCode, target, Comparison.GE, args[0], args[1]));
-        initComparisonOp(baseEnvironment, module, "gt", ">",
-                (functionCode, target, args) -> generateComparison(functionCode, target, Comparison.GT, args[0], args[1]));
-        initComparisonOp(baseEnvironment, module, "le", "<=",
-                (functionCode, target, args) -> generateComparison(functionCode, target, Comparison.LE, args[0], args[1]));
-        initComparisonOp(baseEnvironment, module, "lt", "<",
-                (functionCode, target, args) -> generateComparison(functionCode, target, Comparison.LT, args[0], args[1]));
+        initComparisonOp(baseEnvironment, module, "ne", "!=", Comparison.NE);
+        initComparisonOp(baseEnvironment, module, "eq", "==", Comparison.EQ);
+        initComparisonOp(baseEnvironment, module, "ge", ">=", Comparison.GE);
+        initComparisonOp(baseEnvironment, module, "gt", ">", Comparison.GT);
+        initComparisonOp(baseEnvironment, module, "le", "<=", Comparison.LE);
+        initComparisonOp(baseEnvironment, module, "lt", "<", Comparison.LT);
 
         initLogicalOp(baseEnvironment, module, "and", "and",
                 (functionCode, target, args) -> functionCode.and(target, args[0], args[1]));
@@ -145,6 +73,46 @@ public class Builtins {
                 (functionCode, target, args) -> functionCode.or(target, args[0], args[1]));
     }
 
+    /**
+     * Returns comparison, that is true when the given one is false
+     */
+    static Comparison negate(Comparison comparison) {
+        switch (comparison) {
+            case EQ:
+                return Comparison.NE;
+            case NE:
+                return Comparison.EQ;
+            case LT:
+                return Comparison.GE;
+            case GE:
+                return Comparison.LT;
+            case GT:
+                return Comparison.LE;
+            case LE:
+                return Comparison.GT;
+            default:
+                throw new IllegalArgumentException("Unknown comparison: " + comparison);
+        }
+    }
+
+    /**
+     * Returns comparison with swapped operands: (a < b) is (b > a)
+     */
+    static Comparison swap(Comparison comparison) {
+        switch (comparison) {
+            case LT:
+                return Comparison.GT;
+            case GT:
+                return Comparison.LT;
+            case LE:
+                return Comparison.GE;
+            case GE:
+                return Comparison.LE;
+            default:
+                return comparison;
+        }
+    }
+
     private static void generateComparison(FunctionCode functionCode, LocalWrapper<Boolean> target,
                                            Comparison comparison, LocalWrapper a, LocalWrapper b) {
         Label thenLabel = new Label();
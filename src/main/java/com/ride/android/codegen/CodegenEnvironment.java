@@ -1,44 +1,70 @@
 package com.ride.android.codegen;
 
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.ListIterator;
-import java.util.Map;
+import com.ride.android.ast.Expressions;
+import com.ride.android.symbols.Frames;
+import com.ride.android.symbols.Symbols;
+
+import java.util.ArrayDeque;
 
 /**
  * This is the environment of codegen process.
- * When a variable (function param or function name) is used, it is queried here.
+ * When a variable (function param or function name) is used, it is queried here by its resolved position
+ * (see {@link com.ride.android.ast.Resolver}).
  * Environment entries contain one of
  * - field declarations of defined functions
  * - local wrappers of function params
+ * - fields of captured variables (see {@link com.ride.android.closures.ClosureConverter})
  */
 public class CodegenEnvironment {
-    private LinkedList<Map<String, Generator.EnvironmentEntry>> frames = new LinkedList<>();
+    private final Frames<Generator.EnvironmentEntry> frames = new Frames<>();
+    // captures of closures, whose bodies are generated, innermost first
+    private final ArrayDeque<Generator.EnvironmentEntry[]> closures = new ArrayDeque<>();
+
+    public final void push(int[] ids) {
+        frames.pushFrame(ids);
+    }
 
-    public CodegenEnvironment() {
-        push();
+    /**
+     * Adds entry to the innermost frame
+     */
+    public final void addLocal(int slot, Generator.EnvironmentEntry entry) {
+        frames.setLocal(slot, entry);
     }
 
-    public final void push() {
-        frames.add(new HashMap<>());
+    /**
+     * Adds entry of top-level definition or builtin
+     */
+    public final void add(int id, Generator.EnvironmentEntry entry) {
+        frames.defineGlobal(id, entry);
     }
 
     public final void add(String name, Generator.EnvironmentEntry entry) {
-        frames.getLast().put(name, entry);
+        add(Symbols.intern(name), entry);
     }
 
     public final void pop() {
-        frames.removeLast();
+        frames.popFrame();
+    }
+
+    /**
+     * Enters body of closure, captured variables are looked up in its entries
+     */
+    public final void pushClosure(Generator.EnvironmentEntry[] captures) {
+        closures.push(captures);
+    }
+
+    public final void popClosure() {
+        closures.pop();
     }
 
-    public Generator.EnvironmentEntry lookup(String symbol) {
-        ListIterator<Map<String, Generator.EnvironmentEntry>> iterator = frames.listIterator(frames.size());
-        while (iterator.hasPrevious()) {
-            Map<String, Generator.EnvironmentEntry> frame = iterator.previous();
-            if (frame.get(symbol) != null) {
-                return frame.get(symbol);
-            }
+    public Generator.EnvironmentEntry lookup(Expressions.Variable variable) {
+        if (variable.isCaptured()) {
+            return closures.peek()[variable.getSlot()];
+        } else if (variable.isGlobal()) {
+            return frames.global(variable.id);
+        } else if (variable.isResolved()) {
+            return frames.local(variable.getDepth(), variable.getSlot());
         }
-        return null;
+        return frames.lookup(variable.id);
     }
 }
@@ -9,15 +9,18 @@ import com.android.dx.TypeId;
  * Why do we need it? Because all locals must be generated before any instruction.
  * (Generation of local means calling {@link Code#newLocal(TypeId)})
  * So we add a layer of indirection - we can operate on this object while generating expressions.
+ * <p>
+ * Deferred local is a virtual register: generator takes a new one for every temporary,
+ * and {@link RegisterAllocator} maps locals, that are never live at the same time, to the same real local.
  */
 public class DeferredLocal<T> implements LocalWrapper<T> {
     private com.android.dx.Local<T> realLocal;
-    private TypeId<T> typeId;
-    private int pos;
+    private final TypeId<T> typeId;
+    private final int index;
 
-    public DeferredLocal(int pos, TypeId<T> typeId) {
+    DeferredLocal(int index, TypeId<T> typeId) {
         this.typeId = typeId;
-        this.pos = pos;
+        this.index = index;
     }
 
     @Override
@@ -28,11 +31,18 @@ public class DeferredLocal<T> implements LocalWrapper<T> {
         return realLocal;
     }
 
-    public void generate(Code code) {
-        realLocal = code.newLocal(typeId);
+    void assign(com.android.dx.Local<T> realLocal) {
+        this.realLocal = realLocal;
+    }
+
+    /**
+     * Number of the local in its function
+     */
+    int getIndex() {
+        return index;
     }
 
-    public int getPos() {
-        return pos;
+    public TypeId<T> getTypeId() {
+        return typeId;
     }
 }
@@ -3,9 +3,9 @@ package com.ride.android.codegen;
 import com.android.dx.*;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
 
 /**
  * This class represents code of the declared function
@@ -14,112 +14,168 @@ import java.util.Map;
  * And also wraps {@link Code} instance for declared function
  * One of the main reasons this exists - locals need to be generated before instructions.
  * That's why they are stored separately.
+ * <p>
+ * Locals are virtual, every {@link #newLocal(TypeId)} makes a new one,
+ * and real registers are assigned to them by {@link RegisterAllocator} when the function is compiled.
+ * <p>
+ * Instructions that can not be reached (e.g. after a jump of tail call) are dropped,
+ * because dx does not accept blocks without predecessors.
+ * <p>
+ * Method is declared in dex only when it is compiled, so {@link Module} may drop the function, that is never used.
+ * Methods, fields and types, that the code uses, are collected for that (see {@link #getReferences()}).
  */
 public class FunctionCode implements Translatable {
-    private final List<Map<TypeId, DeferredLocal>> locals = new ArrayList<>();
+    private final List<DeferredLocal> locals = new ArrayList<>();
     private final List<Instructions.Instruction> instructions = new ArrayList<>();
-    private final Code code;
     private final MethodId methodId;
+    private final int flags;
+    // known after the method is declared
+    private Code code;
+    private final Set<Object> references = new HashSet<>();
+
+    // false after unconditional jump or return, until a label that is a target of some branch is marked
+    private boolean reachable = true;
+    private final Set<Label> branchTargets = new HashSet<>();
+
+    // count of real locals, known after compilation
+    private int registers = -1;
 
-    public FunctionCode(final Code code, final MethodId methodId) {
+    public FunctionCode(final MethodId methodId, final int flags) {
         this.methodId = methodId;
-        this.code = code;
-    }
-
-    DeferredLocal getOrCreateLocal(final int finalPos, final TypeId<?> typeId) {
-        if (finalPos > locals.size()) {
-            throw new RuntimeException("Somehow registers do not increment");
-        } else if (locals.size() == finalPos) {
-            DeferredLocal local = new DeferredLocal<>(finalPos, typeId);
-            Map<TypeId, DeferredLocal> localsMap = new HashMap<>();
-            localsMap.put(typeId, local);
-            locals.add(localsMap);
-            return local;
-        }
-        if (locals.get(finalPos).get(typeId) == null) {
-            locals.get(finalPos).put(typeId, new DeferredLocal<>(finalPos, typeId));
-        }
-        return locals.get(finalPos).get(typeId);
+        this.flags = flags;
+        // types of signature must be declared, if the method is compiled
+        references.add(methodId.getReturnType());
+        references.addAll(methodId.getParameters());
+    }
+
+    <T> DeferredLocal<T> newLocal(final TypeId<T> typeId) {
+        DeferredLocal<T> local = new DeferredLocal<>(locals.size(), typeId);
+        locals.add(local);
+        return local;
     }
 
     public MethodId getMethodId() {
         return methodId;
     }
 
+    /**
+     * Count of locals, that were requested by generator
+     */
+    int getLocalCount() {
+        return locals.size();
+    }
+
+    /**
+     * Count of real locals after register allocation
+     */
+    int getRegisterCount() {
+        return registers;
+    }
+
+    @Override
+    public Set<Object> getReferences() {
+        return references;
+    }
+
     ParamLocal getParam(int index, TypeId typeId) {
-        return new ParamLocal<>(code.getParameter(index, typeId));
+        return new ParamLocal<>(() -> code.getParameter(index, typeId));
     }
 
     ParamLocal getThis(TypeId typeId) {
-        return new ParamLocal(code.getThis(typeId));
+        return new ParamLocal<>(() -> code.getThis(typeId));
     }
 
     void move(LocalWrapper dest, LocalWrapper target) {
-        instructions.add(code -> code.move(dest.getRealLocal(), target.getRealLocal()));
+        emit(new Instructions.Operation(dest, code -> code.move(dest.getRealLocal(), target.getRealLocal()), target));
     }
 
     void add(LocalWrapper dest, LocalWrapper a, LocalWrapper b) {
-        instructions.add(new Instructions.BinaryInstruction(BinaryOp.ADD, dest, a, b));
+        emit(new Instructions.BinaryInstruction(BinaryOp.ADD, dest, a, b));
     }
 
     void subtract(LocalWrapper dest, LocalWrapper a, LocalWrapper b) {
-        instructions.add(new Instructions.BinaryInstruction(BinaryOp.SUBTRACT, dest, a, b));
+        emit(new Instructions.BinaryInstruction(BinaryOp.SUBTRACT, dest, a, b));
     }
 
     void multiply(LocalWrapper dest, LocalWrapper a, LocalWrapper b) {
-        instructions.add(new Instructions.BinaryInstruction(BinaryOp.MULTIPLY, dest, a, b));
+        emit(new Instructions.BinaryInstruction(BinaryOp.MULTIPLY, dest, a, b));
     }
 
     void divide(LocalWrapper dest, LocalWrapper a, LocalWrapper b) {
-        instructions.add(new Instructions.BinaryInstruction(BinaryOp.DIVIDE, dest, a, b));
+        emit(new Instructions.BinaryInstruction(BinaryOp.DIVIDE, dest, a, b));
     }
 
     void remainder(LocalWrapper dest, LocalWrapper a, LocalWrapper b) {
-        instructions.add(new Instructions.BinaryInstruction(BinaryOp.REMAINDER, dest, a, b));
+        emit(new Instructions.BinaryInstruction(BinaryOp.REMAINDER, dest, a, b));
     }
 
     void and(LocalWrapper dest, LocalWrapper a, LocalWrapper b) {
-        instructions.add(new Instructions.BinaryInstruction(BinaryOp.AND, dest, a, b));
+        emit(new Instructions.BinaryInstruction(BinaryOp.AND, dest, a, b));
     }
 
     void or(LocalWrapper dest, LocalWrapper a, LocalWrapper b) {
-        instructions.add(new Instructions.BinaryInstruction(BinaryOp.OR, dest, a, b));
+        emit(new Instructions.BinaryInstruction(BinaryOp.OR, dest, a, b));
     }
 
     void xor(LocalWrapper dest, LocalWrapper a, LocalWrapper b) {
-        instructions.add(new Instructions.BinaryInstruction(BinaryOp.XOR, dest, a, b));
+        emit(new Instructions.BinaryInstruction(BinaryOp.XOR, dest, a, b));
     }
 
     void compare(Comparison comparison, Label trueLabel, LocalWrapper a, LocalWrapper b) {
-        instructions.add(new Instructions.CompareInstruction(comparison, trueLabel, a, b));
+        branchTo(trueLabel);
+        emit(new Instructions.CompareInstruction(comparison, trueLabel, a, b));
     }
 
     void compareZ(Label trueLabel, LocalWrapper a) {
-        instructions.add(new Instructions.CompareZInstruction(Comparison.EQ, trueLabel, a));
+        compareZ(Comparison.EQ, trueLabel, a);
+    }
+
+    void compareZ(Comparison comparison, Label trueLabel, LocalWrapper a) {
+        branchTo(trueLabel);
+        emit(new Instructions.CompareZInstruction(comparison, trueLabel, a));
     }
 
     void jump(Label label) {
-        instructions.add(new Instructions.JumpInstruction(label));
+        branchTo(label);
+        emit(new Instructions.JumpInstruction(label));
+        reachable = false;
     }
 
     void markLabel(Label label) {
-        instructions.add((code -> code.mark(label)));
+        if (!reachable && !branchTargets.contains(label)) {
+            return;
+        }
+        reachable = true;
+        emit(new Instructions.MarkInstruction(label));
     }
 
     <T> void load(LocalWrapper<T> dest, T constant) {
-        instructions.add(new Instructions.LoadInstruction(dest, constant));
+        emit(new Instructions.LoadInstruction(dest, constant));
     }
 
     void sget(FieldId field, LocalWrapper dest) {
-        instructions.add(code -> code.sget(field, dest.getRealLocal()));
+        reference(field);
+        emit(new Instructions.Operation(dest, code -> code.sget(field, dest.getRealLocal())));
     }
 
     void sput(FieldId field, LocalWrapper src) {
-        instructions.add(code -> code.sput(field, src.getRealLocal()));
+        reference(field);
+        emit(new Instructions.Operation(null, code -> code.sput(field, src.getRealLocal()), src));
+    }
+
+    void iget(FieldId field, LocalWrapper dest, LocalWrapper instance) {
+        emit(new Instructions.Operation(dest, code -> code.iget(field, dest.getRealLocal(), instance.getRealLocal()),
+                instance));
+    }
+
+    void iput(FieldId field, LocalWrapper instance, LocalWrapper src) {
+        emit(new Instructions.Operation(null, code -> code.iput(field, instance.getRealLocal(), src.getRealLocal()),
+                instance, src));
     }
 
     void invokeVirtual(MethodId method, LocalWrapper target, LocalWrapper instance, DeferredLocal... args) {
-        instructions.add(code -> {
+        reference(method.getDeclaringType());
+        emit(new Instructions.Operation(target, code -> {
             Local[] realArgs = new Local[args.length];
             for (int i = 0, argsLength = args.length; i < argsLength; i++) {
                 realArgs[i] = args[i].getRealLocal();
@@ -130,59 +186,84 @@ public class FunctionCode implements Translatable {
                 realLocal = target.getRealLocal();
             }
             code.invokeVirtual(method, realLocal, instance.getRealLocal(), realArgs);
-        });
+        }, concat(instance, args)));
     }
 
     void invokeConstructorSuper(MethodId method, ParamLocal var) {
-        instructions.add(code -> code.invokeDirect(method, null, var.getRealLocal()));
+        emit(new Instructions.Operation(null, code -> code.invokeDirect(method, null, var.getRealLocal()), var));
     }
 
     void newInstance(MethodId constructorMethod, LocalWrapper target, LocalWrapper... args) {
-        instructions.add(code -> {
+        reference(constructorMethod.getDeclaringType());
+        emit(new Instructions.Operation(target, code -> {
             Local[] realArgs = new Local[args.length];
             for (int i = 0, argsLength = args.length; i < argsLength; i++) {
                 realArgs[i] = args[i].getRealLocal();
             }
             code.newInstance(target.getRealLocal(), constructorMethod, realArgs);
-        });
+        }, args));
     }
 
     void call(MethodId method, LocalWrapper target, LocalWrapper... args) {
-        instructions.add(code -> {
+        reference(method);
+        emit(new Instructions.Operation(target, code -> {
             Local[] realArgs = new Local[args.length];
             for (int i = 0, argsLength = args.length; i < argsLength; i++) {
                 realArgs[i] = args[i].getRealLocal();
             }
             code.invokeStatic(method, target.getRealLocal(), realArgs);
-        });
+        }, args));
     }
 
-    void cast(LocalWrapper target, LocalWrapper src) {
-        instructions.add(code -> {
+    void cast(DeferredLocal target, LocalWrapper src) {
+        reference(target.getTypeId());
+        emit(new Instructions.Operation(target, code -> {
             code.cast(target.getRealLocal(), src.getRealLocal());
-        });
+        }, src));
     }
 
     void returnVoid() {
-        instructions.add(Code::returnVoid);
+        emit(new Instructions.ReturnInstruction(null));
+        reachable = false;
     }
 
     void returnValue(LocalWrapper result) {
-        instructions.add(code -> code.returnValue(result.getRealLocal()));
+        emit(new Instructions.ReturnInstruction(result));
+        reachable = false;
     }
 
-    @Override
-    public void compile() {
-        // System.out.println("Locals to compile:" + locals);
-        for (Map<TypeId, DeferredLocal> localsMap : locals) {
-            for (DeferredLocal local : localsMap.values()) {
-                local.generate(code);
-            }
+    private void branchTo(Label label) {
+        if (reachable) {
+            branchTargets.add(label);
+        }
+    }
+
+    private void reference(Object declaration) {
+        // unreachable instruction is dropped, it does not keep the declaration
+        if (reachable) {
+            references.add(declaration);
         }
-        // System.out.println("Insns to compile:" + instructions);
+    }
+
+    private void emit(Instructions.Instruction instruction) {
+        if (reachable) {
+            instructions.add(instruction);
+        }
+    }
+
+    private static LocalWrapper[] concat(LocalWrapper first, LocalWrapper[] rest) {
+        LocalWrapper[] result = new LocalWrapper[rest.length + 1];
+        result[0] = first;
+        System.arraycopy(rest, 0, result, 1, rest.length);
+        return result;
+    }
+
+    @Override
+    public void compile(DexMaker maker) {
+        code = maker.declare(methodId, flags);
+        registers = RegisterAllocator.allocate(code, instructions, locals);
         for (Instructions.Instruction instruction : instructions) {
             instruction.generate(code);
         }
     }
 }
-
@@ -1,5 +1,6 @@
 package com.ride.android.codegen;
 
+import com.android.dx.Comparison;
 import com.android.dx.FieldId;
 import com.android.dx.Label;
 import com.android.dx.MethodId;
@@ -7,6 +8,11 @@ import com.android.dx.TypeId;
 import com.ride.android.ast.Ast;
 import com.ride.android.ast.Expression;
 import com.ride.android.ast.Expressions;
+import com.ride.android.closures.ClosureConverter;
+import com.ride.android.closures.LambdaLifter;
+import com.ride.android.optimizations.ConstantFolder;
+import com.ride.android.optimizations.DeadCodeEliminator;
+import com.ride.android.optimizations.Inliner;
 import com.ride.android.parser.Parser;
 import com.ride.android.parser.Tokenizer;
 import com.ride.android.types.TypeChecker;
@@ -16,6 +22,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import static com.ride.android.types.Types.*;
@@ -52,81 +59,281 @@ public class Generator {
     }
 
     public static byte[] generate(final List<Expression> nodes) {
-        CodegenEnvironment environment = new CodegenEnvironment();
+        Generator generator = new Generator();
+        for (Expression node : nodes) {
+            generator.add(node);
+        }
+        return generator.compile();
+    }
 
-        Module megaModule = new Module();
+    public static final int DEFAULT_INLINE_BUDGET = 24;
+
+    private final CodegenEnvironment environment = new CodegenEnvironment();
+    private final Module megaModule;
+    private final FunctionCode mainFunctionCode;
+    // null, if optimizations are off
+    private final ConstantFolder constantFolder;
+    private final Inliner inliner;
+    private final DeadCodeEliminator deadCodeEliminator;
+
+    /**
+     * Makes optimizing generator for the program
+     */
+    public Generator() {
+        this(true, DEFAULT_INLINE_BUDGET);
+    }
 
-        Builtins.initBuiltins(environment, megaModule);
+    /**
+     * Makes generator, that initializes function objects of definitions on start
+     * See {@link #Generator(boolean, int, boolean)}
+     */
+    public Generator(boolean optimize, int inlineBudget) {
+        this(optimize, inlineBudget, false);
+    }
 
-        FunctionCode mainFunctionCode = megaModule.makeMain();
+    /**
+     * Makes generator for the program, top-level expressions are then added one by one with {@link #add(Expression)}
+     *
+     * @param optimize     if false, expressions are compiled as they are written (-O0)
+     * @param inlineBudget max size of inlined function body, see {@link Inliner}
+     * @param lazyInit     if true, function objects of definitions are made on first use, see {@link Module}
+     */
+    public Generator(boolean optimize, int inlineBudget, boolean lazyInit) {
+        megaModule = new Module(lazyInit);
+        Builtins.initBuiltins(environment, megaModule);
+        mainFunctionCode = megaModule.makeMain();
+        constantFolder = optimize ? new ConstantFolder() : null;
+        inliner = optimize ? new Inliner(inlineBudget) : null;
+        deadCodeEliminator = optimize ? new DeadCodeEliminator() : null;
+    }
 
-        for (Expression node : nodes) {
+    /**
+     * Generates code for single top-level expression
+     * Expression is not referenced after this call, only generated instructions are kept
+     */
+    public void add(final Expression expression) {
+        Expression node = expression;
+        if (constantFolder != null) {
+            // inlined bodies are folded with the args, they are substituted by
+            node = constantFolder.fold(inliner.inline(node));
+            node = deadCodeEliminator.eliminate(node);
             if (node instanceof Expressions.Definition) {
-                generateDefinition(environment, megaModule, (Expressions.Definition) node, megaModule);
-            } else {
-                DeferredLocal target = mainFunctionCode.getOrCreateLocal(0, TypeId.OBJECT);
-                generateExpression(mainFunctionCode, node, target, environment, megaModule);
-
-                TypeId<System> systemType = TypeId.get(System.class);
-                TypeId<PrintStream> printStreamType = TypeId.get(PrintStream.class);
-                FieldId<System, PrintStream> systemOutField = systemType.getField(printStreamType, "out");
-                MethodId<PrintStream, Void> printlnMethod = printStreamType.getMethod(
-                        TypeId.VOID, "println", TypeId.OBJECT);
-
-                LocalWrapper systemOutLocal = mainFunctionCode.getOrCreateLocal(target.getPos() + 1, printStreamType);
-                mainFunctionCode.sget(systemOutField, systemOutLocal);
-                mainFunctionCode.invokeVirtual(printlnMethod, null, systemOutLocal, target);
+                inliner.define((Expressions.Definition) node);
             }
         }
+        LambdaLifter.lift(node);
+        ClosureConverter.convert(node);
+        if (node instanceof Expressions.Definition) {
+            generateDefinition(environment, megaModule, (Expressions.Definition) node, megaModule);
+        } else {
+            TypeId resultType = convertToTypeId(node.getType(), megaModule);
+            DeferredLocal target = mainFunctionCode.newLocal(resultType);
+            generateExpression(mainFunctionCode, node, target, environment, megaModule);
+
+            // primitives are printed with their own overloads, so they are never boxed
+            TypeId printedType = resultType.equals(TypeId.INT) || resultType.equals(TypeId.BOOLEAN)
+                    ? resultType : TypeId.OBJECT;
+            TypeId<System> systemType = TypeId.get(System.class);
+            TypeId<PrintStream> printStreamType = TypeId.get(PrintStream.class);
+            FieldId<System, PrintStream> systemOutField = systemType.getField(printStreamType, "out");
+            MethodId<PrintStream, Void> printlnMethod = printStreamType.getMethod(
+                    TypeId.VOID, "println", printedType);
+
+            LocalWrapper systemOutLocal = mainFunctionCode.newLocal(printStreamType);
+            mainFunctionCode.sget(systemOutField, systemOutLocal);
+            mainFunctionCode.invokeVirtual(printlnMethod, null, systemOutLocal, target);
+        }
+    }
 
+    /**
+     * Finishes main method and returns dex file of the whole program
+     */
+    public byte[] compile() {
         mainFunctionCode.returnVoid();
-
         return megaModule.compile();
     }
 
+    /**
+     * Count of call sites, that were inlined, 0 if optimizations are off
+     */
+    public int getInlinedCalls() {
+        return inliner != null ? inliner.getInlinedCalls() : 0;
+    }
+
+    /**
+     * Count of let bindings, that were removed as unused, 0 if optimizations are off
+     */
+    public int getRemovedBindings() {
+        return deadCodeEliminator != null ? deadCodeEliminator.getRemovedBindings() : 0;
+    }
+
+    /**
+     * Count of functions, lambdas and fields, that were not compiled, because program does not use them
+     * Must be called after {@link #compile()}
+     */
+    public int getRemovedDeclarations() {
+        return megaModule.getRemovedDeclarations();
+    }
+
+    /**
+     * Prints locals of every generated method before and after register allocation, see {@link RegisterAllocator}
+     * Must be called after {@link #compile()}
+     */
+    public void reportRegisters(PrintStream out) {
+        megaModule.reportRegisters(out);
+    }
+
     private static void generateExpression(final FunctionCode functionCode,
                                            final Expression expression,
                                            final DeferredLocal target,
                                            final CodegenEnvironment environment,
                                            final Module module) {
-        generateExpression(functionCode, expression, target, environment, module, null);
+        generateExpression(functionCode, expression, target, environment, module, null, null);
     }
 
+    /**
+     * @param recursion is set for lambda, that is bound by letrec
+     * @param tail      is set if expression is in tail position of a function body, that may jump to its start
+     */
     private static void generateExpression(final FunctionCode functionCode,
                                            final Expression expression,
                                            final DeferredLocal target,
                                            final CodegenEnvironment environment,
                                            final Module module,
-                                           final Recursion recursion) {
+                                           final Recursion recursion,
+                                           final TailPosition tail) {
+        TypeId expressionType = convertToTypeId(expression.getType(), module);
+        if (!expressionType.equals(target.getTypeId())) {
+            // expression is generated in its own representation and then converted
+            DeferredLocal result = functionCode.newLocal(expressionType);
+            generateExpression(functionCode, expression, result, environment, module, recursion, tail);
+            coerce(functionCode, target, result, expressionType);
+            return;
+        }
+
         if (expression instanceof Expressions.Int) {
             generateNumber(functionCode, (Expressions.Int) expression, target);
         } else if (expression instanceof Expressions.Bool) {
             generateBoolean(functionCode, (Expressions.Bool) expression, target);
         } else if (expression instanceof Expressions.Application) {
-            generateApplication(functionCode, (Expressions.Application) expression, target, environment, module);
+            generateApplication(functionCode, (Expressions.Application) expression, target, environment, module, tail);
         } else if (expression instanceof Expressions.Lambda) {
             generateLambda((Expressions.Lambda) expression, environment, functionCode, target, module, recursion);
         } else if (expression instanceof Expressions.IfExpr) {
-            generateIf(functionCode, (Expressions.IfExpr) expression, target, environment, module);
+            generateIf(functionCode, (Expressions.IfExpr) expression, target, environment, module, tail);
         } else if (expression instanceof Expressions.Variable) {
             generateVarExpression(functionCode, (Expressions.Variable) expression, target, environment);
         } else if (expression instanceof Expressions.Let) {
-            generateLet((Expressions.Let) expression, environment, functionCode, target, module);
+            generateLet((Expressions.Let) expression, environment, functionCode, target, module, tail);
         } else if (expression instanceof Expressions.LetRec) {
-            generateLetRec((Expressions.LetRec) expression, environment, functionCode, target, module);
+            generateLetRec((Expressions.LetRec) expression, environment, functionCode, target, module, tail);
         } else {
             throw new RuntimeException("Top level symbols not supported");
         }
     }
 
+    /**
+     * Entry knows how to load variable value, so variable expression is generated without inspecting entry kind
+     */
     public interface EnvironmentEntry {
+        void load(FunctionCode functionCode, DeferredLocal target);
     }
 
-    static class DefinitionEntry implements EnvironmentEntry {
-        private final FieldId fieldId;
+    /**
+     * Top-level definition, that is compiled to a typed static method of Main
+     * <p>
+     * Function object (lambda in a static field, that calls the method) is made only
+     * when the definition is used as a value, direct calls invoke the method.
+     */
+    static class FunctionEntry implements EnvironmentEntry {
+        private final Module module;
+        private final String name;
+        private final MethodId method;
+        private final TypeId[] argTypes;
+        private final TypeId resultType;
+        private FieldId fieldId;
+
+        FunctionEntry(Module module, String name, MethodId method, TypeId[] argTypes, TypeId resultType) {
+            this.module = module;
+            this.name = name;
+            this.method = method;
+            this.argTypes = argTypes;
+            this.resultType = resultType;
+        }
 
-        DefinitionEntry(FieldId fieldId) {
-            this.fieldId = fieldId;
+        @Override
+        public void load(FunctionCode functionCode, DeferredLocal target) {
+            if (fieldId == null) {
+                fieldId = makeFunctionObject();
+            }
+            functionCode.sget(fieldId, target);
+        }
+
+        private FieldId makeFunctionObject() {
+            Module.ModuleDefinition moduleDefinition = module.makeDefine(name, TypeId.OBJECT, erasedArgs(argTypes.length));
+            FunctionCode applyCode = moduleDefinition.lambdaCode.applyCode;
+            DeferredLocal result = applyCode.newLocal(TypeId.OBJECT);
+            DeferredLocal[] args = new DeferredLocal[argTypes.length];
+            for (int i = 0; i < args.length; i++) {
+                args[i] = applyCode.newLocal(argTypes[i]);
+                coerce(applyCode, args[i], applyCode.getParam(i, TypeId.OBJECT), TypeId.OBJECT);
+            }
+            DeferredLocal typedResult = applyCode.newLocal(resultType);
+            applyCode.call(method, typedResult, args);
+            coerce(applyCode, result, typedResult, resultType);
+            applyCode.returnValue(result);
+            return moduleDefinition.definitionField;
+        }
+    }
+
+    /**
+     * Builtin operator, direct calls are generated in place by its delegate
+     * <p>
+     * Function object (lambda in a static field, that applies the delegate to unboxed args) is made only
+     * when the builtin is used as a value, so program, that only calls builtins, has no classes for them.
+     */
+    static class BuiltinEntry implements EnvironmentEntry {
+        private final Module module;
+        private final String name;
+        private final Builtins.OperationDelegate delegate;
+        private final TypeId argType;
+        private final TypeId resultType;
+        // not null for comparison builtins, condition of if is branched on it directly
+        private final Comparison comparison;
+        private FieldId fieldId;
+
+        BuiltinEntry(Module module, String name, Builtins.OperationDelegate delegate,
+                     TypeId argType, TypeId resultType, Comparison comparison) {
+            this.module = module;
+            this.name = name;
+            this.delegate = delegate;
+            this.argType = argType;
+            this.resultType = resultType;
+            this.comparison = comparison;
+        }
+
+        @Override
+        public void load(FunctionCode functionCode, DeferredLocal target) {
+            if (fieldId == null) {
+                fieldId = makeFunctionObject();
+            }
+            functionCode.sget(fieldId, target);
+        }
+
+        private FieldId makeFunctionObject() {
+            Module.ModuleDefinition moduleDefinition = module.makeDefine(name, TypeId.OBJECT, erasedArgs(2));
+            FunctionCode applyCode = moduleDefinition.lambdaCode.applyCode;
+            DeferredLocal result = applyCode.newLocal(TypeId.OBJECT);
+            DeferredLocal[] args = new DeferredLocal[2];
+            for (int i = 0; i < args.length; i++) {
+                args[i] = applyCode.newLocal(argType);
+                coerce(applyCode, args[i], applyCode.getParam(i, TypeId.OBJECT), TypeId.OBJECT);
+            }
+            DeferredLocal typedResult = applyCode.newLocal(resultType);
+            delegate.apply(applyCode, typedResult, args);
+            coerce(applyCode, result, typedResult, resultType);
+            applyCode.returnValue(result);
+            return moduleDefinition.definitionField;
         }
     }
 
@@ -136,6 +343,11 @@ public class Generator {
         LetEntry(DeferredLocal varWrapper) {
             this.varWrapper = varWrapper;
         }
+
+        @Override
+        public void load(FunctionCode functionCode, DeferredLocal target) {
+            coerce(functionCode, target, varWrapper, varWrapper.getTypeId());
+        }
     }
 
     static class ThisEntry implements EnvironmentEntry {
@@ -144,13 +356,57 @@ public class Generator {
         ThisEntry(TypeId typeId) {
             this.typeId = typeId;
         }
+
+        @Override
+        public void load(FunctionCode functionCode, DeferredLocal target) { // this shit does not work on nested letrecs
+            functionCode.move(target, functionCode.getThis(typeId));
+        }
+    }
+
+    /**
+     * Variable captured by closure, it is read from the final field of closure object
+     * Primitives are captured unboxed
+     */
+    static class CapturedEntry implements EnvironmentEntry {
+        private final FieldId fieldId;
+        private final TypeId typeId;
+        private final TypeId closureType;
+
+        CapturedEntry(FieldId fieldId, TypeId typeId, TypeId closureType) {
+            this.fieldId = fieldId;
+            this.typeId = typeId;
+            this.closureType = closureType;
+        }
+
+        @Override
+        public void load(FunctionCode functionCode, DeferredLocal target) {
+            LocalWrapper closure = functionCode.getThis(closureType);
+            if (target.getTypeId().equals(typeId)) {
+                functionCode.iget(fieldId, target, closure);
+            } else {
+                DeferredLocal value = functionCode.newLocal(typeId);
+                functionCode.iget(fieldId, value, closure);
+                coerce(functionCode, target, value, typeId);
+            }
+        }
     }
 
+    /**
+     * Args of lambdas are always objects (see {@link #erasedArgs(int)}), args of definitions are typed
+     * They are converted on every use, if needed
+     */
     static class NamedArgEntry implements EnvironmentEntry {
         private final ParamLocal varWrapper;
+        private final TypeId typeId;
 
-        NamedArgEntry(ParamLocal varWrapper) {
+        NamedArgEntry(ParamLocal varWrapper, TypeId typeId) {
             this.varWrapper = varWrapper;
+            this.typeId = typeId;
+        }
+
+        @Override
+        public void load(FunctionCode functionCode, DeferredLocal target) {
+            coerce(functionCode, target, varWrapper, typeId);
         }
     }
 
@@ -158,34 +414,58 @@ public class Generator {
                                            final Module megaModule,
                                            final Expressions.Definition definition,
                                            final Module module) {
-        // make function delegate
-        TypeId[] args = convertToTypeId(definition.getType().args);
-        TypeId res = convertToTypeId(definition.getType().res);
-        Module.ModuleDefinition moduleDefinition = megaModule.makeDefine(definition.name, res, args);
+        // make static method
+        TypeId[] args = convertToTypeId(definition.getType().args, module);
+        TypeId res = convertToTypeId(definition.getType().res, module);
+        FunctionCode methodCode = megaModule.makeFunction(res, megaModule.definitionMethodName(definition.name), args);
+
+        // register function before the body, definition is recursive
+        FunctionEntry function = new FunctionEntry(megaModule, definition.name, methodCode.getMethodId(), args, res);
+        environment.add(definition.id, function);
 
         // define args
-        environment.push();
+        environment.push(definition.getArgIds());
+        ParamLocal[] params = new ParamLocal[args.length];
         for (int i = 0; i < args.length; i++) {
-            environment.add(definition.getArg(i), new NamedArgEntry(moduleDefinition.lambdaCode.applyCode.getParam(i, args[i])));
+            params[i] = methodCode.getParam(i, args[i]);
+            environment.addLocal(i, new NamedArgEntry(params[i], args[i]));
         }
 
         // launch func body
-        DeferredLocal castedResult = moduleDefinition.lambdaCode.applyCode.getOrCreateLocal(0, TypeId.OBJECT);
-        DeferredLocal target = moduleDefinition.lambdaCode.applyCode.getOrCreateLocal(1, res);
-        generateExpression(moduleDefinition.lambdaCode.applyCode, definition.body, target, environment, module);
-        moduleDefinition.lambdaCode.applyCode.cast(castedResult, target);
-        moduleDefinition.lambdaCode.applyCode.returnValue(castedResult);
+        TailPosition tail = new TailPosition(function, params, args);
+        methodCode.markLabel(tail.start);
+        DeferredLocal target = methodCode.newLocal(res);
+        generateExpression(methodCode, definition.body, target, environment, module, null, tail);
+        methodCode.returnValue(target);
 
-        // register function
         environment.pop();
-        environment.add(definition.name, new DefinitionEntry(moduleDefinition.definitionField));
     }
 
+    /**
+     * Body of the function being generated, self call in its tail position is compiled to a loop:
+     * new args are put into param registers and control jumps back to the start of the method
+     */
+    private static class TailPosition {
+        final EnvironmentEntry self;
+        final Label start = new Label();
+        final ParamLocal[] params;
+        final TypeId[] paramTypes;
+
+        TailPosition(final EnvironmentEntry self, final ParamLocal[] params, final TypeId[] paramTypes) {
+            this.self = self;
+            this.params = params;
+            this.paramTypes = paramTypes;
+        }
+    }
+
+    /**
+     * Marks lambda that is bound by letrec, it is put to slot of the letrec frame while its body is generated
+     */
     private static class Recursion {
-        final String recVar;
+        final int recSlot;
 
-        Recursion(final String recVar) {
-            this.recVar = recVar;
+        Recursion(final int recSlot) {
+            this.recSlot = recSlot;
         }
     }
 
@@ -195,51 +475,78 @@ public class Generator {
                                        final DeferredLocal target,
                                        final Module module, final Recursion recursion) {
         // declare lambda
-        TypeId[] args = convertToTypeId(lambda.getType().args);
-        TypeId res = convertToTypeId(lambda.getType().res);
-        LambdaCode lambdaCode = module.makeLambda(convertToTypeId(lambda.getType().res), args);
+        TypeId[] args = erasedArgs(lambda.getType().args.size());
+        TypeId res = convertToTypeId(lambda.getType().res, module);
+        List<Expressions.Variable> captures = lambda.getCaptures();
+        TypeId[] captureTypes = new TypeId[captures.size()];
+        for (int i = 0; i < captureTypes.length; i++) {
+            captureTypes[i] = convertToTypeId(captures.get(i).getType(), module);
+        }
+        LambdaCode lambdaCode = module.makeClosure(TypeId.OBJECT, args, captureTypes);
+        EnvironmentEntry[] capturedEntries = new EnvironmentEntry[captureTypes.length];
+        for (int i = 0; i < captureTypes.length; i++) {
+            capturedEntries[i] = new CapturedEntry(lambdaCode.getCaptureField(i), captureTypes[i],
+                    lambdaCode.getLambdaType());
+        }
 
+        ThisEntry self = null;
         if (recursion != null) {
-            environment.add(recursion.recVar, new ThisEntry(lambdaCode.getLambdaType()));
+            self = new ThisEntry(lambdaCode.getLambdaType());
+            environment.addLocal(recursion.recSlot, self);
         }
 
         // register args
-        environment.push();
+        environment.pushClosure(capturedEntries);
+        environment.push(lambda.getArgIds());
+        ParamLocal[] params = new ParamLocal[args.length];
         for (int i = 0; i < args.length; i++) {
-            environment.add(lambda.getArg(i), new NamedArgEntry(lambdaCode.applyCode.getParam(i, args[i])));
+            params[i] = lambdaCode.applyCode.getParam(i, args[i]);
+            environment.addLocal(i, new NamedArgEntry(params[i], args[i]));
         }
 
-        // generate body
-        DeferredLocal lambdaApplyCastedResult = lambdaCode.applyCode.getOrCreateLocal(0, TypeId.OBJECT);
-        DeferredLocal lambdaApplyResult = lambdaCode.applyCode.getOrCreateLocal(1, res);
-        generateExpression(lambdaCode.applyCode, lambda.body, lambdaApplyResult, environment, module);
-        lambdaCode.applyCode.cast(lambdaApplyCastedResult, lambdaApplyResult);
+        // generate body, only lambda bound by letrec can call itself
+        TailPosition tail = null;
+        if (self != null) {
+            tail = new TailPosition(self, params, args);
+            lambdaCode.applyCode.markLabel(tail.start);
+        }
+        DeferredLocal lambdaApplyCastedResult = lambdaCode.applyCode.newLocal(TypeId.OBJECT);
+        DeferredLocal lambdaApplyResult = lambdaCode.applyCode.newLocal(res);
+        generateExpression(lambdaCode.applyCode, lambda.body, lambdaApplyResult, environment, module, null, tail);
+        coerce(lambdaCode.applyCode, lambdaApplyCastedResult, lambdaApplyResult, res);
         lambdaCode.applyCode.returnValue(lambdaApplyCastedResult);
         environment.pop();
+        environment.popClosure();
 
-        // instantiate lambda object to target
-        functionCode.newInstance(lambdaCode.getConstructorMethod(), target);
+        // instantiate lambda object to target, captured values are read in the current scope
+        DeferredLocal[] capturedValues = new DeferredLocal[captureTypes.length];
+        for (int i = 0; i < captureTypes.length; i++) {
+            capturedValues[i] = functionCode.newLocal(captureTypes[i]);
+            generateExpression(functionCode, captures.get(i), capturedValues[i], environment, module);
+        }
+        functionCode.newInstance(lambdaCode.getConstructorMethod(), target, capturedValues);
     }
 
     private static void generateLet(final Expressions.Let let,
                                     final CodegenEnvironment environment,
                                     final FunctionCode functionCode,
                                     final DeferredLocal target,
+                                    final Module module,
+                                    final TailPosition tail) {
+        EnvironmentEntry varEntry;
+        if (isLifted(let.varExpr)) {
+            varEntry = generateLiftedFunction((Expressions.Lambda) let.varExpr, let.var, environment, module, false);
+        } else {
+            TypeId varType = convertToTypeId(let.varExpr.getType(), module);
+            DeferredLocal varLocal = functionCode.newLocal(varType);
+            generateExpression(functionCode, let.varExpr, varLocal, environment, module);
+            varEntry = new LetEntry(varLocal);
+        }
 
-                                    final Module module) {
-        TypeId varType = convertToTypeId(let.varExpr.getType());
-        DeferredLocal varLocal = functionCode.getOrCreateLocal(target.getPos() + 1, varType);
-        generateExpression(functionCode, let.varExpr, varLocal, environment, module);
-
-        environment.push();
-        environment.add(let.var, new LetEntry(varLocal));
-
-        // this is needed because local vars position must monotonically increase
-        TypeId bodyType = convertToTypeId(let.getType());
-        DeferredLocal tmpTargetLocal = functionCode.getOrCreateLocal(target.getPos() + 2, bodyType);
+        environment.push(let.getFrameIds());
+        environment.addLocal(0, varEntry);
 
-        generateExpression(functionCode, let.body, tmpTargetLocal, environment, module);
-        functionCode.move(target, tmpTargetLocal);
+        generateExpression(functionCode, let.body, target, environment, module, null, tail);
 
         environment.pop();
     }
@@ -248,164 +555,361 @@ public class Generator {
                                        final CodegenEnvironment environment,
                                        final FunctionCode functionCode,
                                        final DeferredLocal target,
+                                       final Module module,
+                                       final TailPosition tail) {
+        if (isLifted(letRec.varExpr)) {
+            // function is in the frame already, when its body is generated
+            environment.push(letRec.getFrameIds());
+            generateLiftedFunction((Expressions.Lambda) letRec.varExpr, letRec.var, environment, module, true);
+            generateExpression(functionCode, letRec.body, target, environment, module, null, tail);
+            environment.pop();
+            return;
+        }
 
-                                       final Module module) {
-        TypeId varType = convertToTypeId(letRec.varExpr.getType());
-        DeferredLocal varLocal = functionCode.getOrCreateLocal(target.getPos() + 1, varType);
-        environment.push();
-        generateExpression(functionCode, letRec.varExpr, varLocal, environment, module, new Recursion(letRec.var));
+        TypeId varType = convertToTypeId(letRec.varExpr.getType(), module);
+        DeferredLocal varLocal = functionCode.newLocal(varType);
+        environment.push(letRec.getFrameIds());
+        generateExpression(functionCode, letRec.varExpr, varLocal, environment, module, new Recursion(0), null);
         environment.pop();
 
 
-        environment.push();
-        environment.add(letRec.var, new LetEntry(varLocal));
+        environment.push(letRec.getFrameIds());
+        environment.addLocal(0, new LetEntry(varLocal));
+
+        generateExpression(functionCode, letRec.body, target, environment, module, null, tail);
 
-        // this is needed because local vars position must monotonically increase
-        TypeId bodyType = convertToTypeId(letRec.getType());
-        DeferredLocal tmpTargetLocal = functionCode.getOrCreateLocal(target.getPos() + 2, bodyType);
+        environment.pop();
+    }
+
+    private static boolean isLifted(final Expression varExpr) {
+        return varExpr instanceof Expressions.Lambda && ((Expressions.Lambda) varExpr).isLifted();
+    }
+
+    /**
+     * Lifted lambda (see {@link LambdaLifter}) is a typed static method of Main, like top-level definition,
+     * its free variables are extra params after the lambda args
+     * Function is called directly and is never used as a value, so no lambda object is made
+     *
+     * @param recursive function is put to the slot of the innermost frame (of letrec) before its body is generated
+     */
+    private static FunctionEntry generateLiftedFunction(final Expressions.Lambda lambda,
+                                                        final String name,
+                                                        final CodegenEnvironment environment,
+                                                        final Module module,
+                                                        final boolean recursive) {
+        List<Expressions.Variable> free = lambda.getLiftedParams();
+        int argsCount = lambda.args.size();
+        TypeId[] args = new TypeId[argsCount + free.size()];
+        int[] ids = new int[args.length];
+        for (int i = 0; i < argsCount; i++) {
+            args[i] = convertToTypeId(lambda.getType().args.get(i), module);
+            ids[i] = lambda.getArgId(i);
+        }
+        for (int i = 0; i < free.size(); i++) {
+            args[argsCount + i] = convertToTypeId(free.get(i).getType(), module);
+            ids[argsCount + i] = free.get(i).id;
+        }
+        TypeId res = convertToTypeId(lambda.getType().res, module);
+        FunctionCode methodCode = module.makeFunction(res, module.liftedMethodName(name), args);
+        FunctionEntry function = new FunctionEntry(module, name, methodCode.getMethodId(), args, res);
+        if (recursive) {
+            environment.addLocal(0, function);
+        }
+
+        // body is not a closure, it sees only its params (and other lifted functions)
+        environment.pushClosure(new EnvironmentEntry[0]);
+        environment.push(ids);
+        ParamLocal[] params = new ParamLocal[args.length];
+        for (int i = 0; i < args.length; i++) {
+            params[i] = methodCode.getParam(i, args[i]);
+            environment.addLocal(i, new NamedArgEntry(params[i], args[i]));
+        }
 
-        generateExpression(functionCode, letRec.body, tmpTargetLocal, environment, module);
-        functionCode.move(target, tmpTargetLocal);
+        TailPosition tail = new TailPosition(function, params, args);
+        methodCode.markLabel(tail.start);
+        DeferredLocal target = methodCode.newLocal(res);
+        generateExpression(methodCode, lambda.body, target, environment, module, null, tail);
+        methodCode.returnValue(target);
 
         environment.pop();
+        environment.popClosure();
+        return function;
     }
 
-    public static void generateIf(final FunctionCode functionCode,
+    private static void generateIf(final FunctionCode functionCode,
                                   final Expressions.IfExpr expr,
                                   final DeferredLocal target,
                                   final CodegenEnvironment environment,
-                                  final Module module) {
-        Label thenLabel = new Label();
+                                  final Module module,
+                                  final TailPosition tail) {
+        Label elseLabel = new Label();
         Label afterLabel = new Label();
 
-        // generate if expression
-        DeferredLocal ifResult = functionCode.getOrCreateLocal(target.getPos() + 1,
-                convertToTypeId(expr.condition.getType()));
-
-        // cast to boxed boolean and get primitive value
-        DeferredLocal ifCastedResult = functionCode.getOrCreateLocal(target.getPos() + 2, Module.BOXED_BOOLEAN);
-        DeferredLocal ifRawResult = functionCode.getOrCreateLocal(target.getPos() + 3, TypeId.BOOLEAN);
-        generateExpression(functionCode, expr.condition, ifResult, environment, module);
-        functionCode.cast(ifCastedResult, ifResult);
-        functionCode.invokeVirtual(Module.METHOD_BOOLEAN_VALUE, ifRawResult, ifCastedResult);
-
         // if
-        functionCode.compareZ(thenLabel, ifRawResult);
+        generateBranchIfFalse(functionCode, expr.condition, elseLabel, environment, module);
 
-        // else
-        DeferredLocal elseResult = functionCode.getOrCreateLocal(target.getPos() + 1,
-                convertToTypeId(expr.ifBranch.getType()));
-        generateExpression(functionCode, expr.ifBranch, elseResult, environment, module);
-        functionCode.move(target, elseResult);
+        // then
+        generateExpression(functionCode, expr.ifBranch, target, environment, module, null, tail);
         functionCode.jump(afterLabel);
 
-        // then
-        functionCode.markLabel(thenLabel);
-        DeferredLocal thenResult = functionCode.getOrCreateLocal(target.getPos() + 1,
-                convertToTypeId(expr.elseBranch.getType()));
-        generateExpression(functionCode, expr.elseBranch, thenResult, environment, module);
-        functionCode.move(target, thenResult);
+        // else
+        functionCode.markLabel(elseLabel);
+        generateExpression(functionCode, expr.elseBranch, target, environment, module, null, tail);
 
         // after
         functionCode.markLabel(afterLabel);
     }
 
+    /**
+     * Jumps to the label, if condition is false
+     * <p>
+     * Comparison builtin is fused into the branch: (if (> a b) ...) is a single if-le on int registers,
+     * and comparison with literal zero is if-testz on one register, no boolean is materialized.
+     * Any other condition is evaluated into a primitive boolean and tested with if-eqz.
+     */
+    private static void generateBranchIfFalse(final FunctionCode functionCode,
+                                              final Expression condition,
+                                              final Label falseLabel,
+                                              final CodegenEnvironment environment,
+                                              final Module module) {
+        if (condition instanceof Expressions.Application) {
+            Expressions.Application application = (Expressions.Application) condition;
+            if (application.function instanceof Expressions.Variable && application.getArgs().size() == 2) {
+                EnvironmentEntry entry = environment.lookup((Expressions.Variable) application.function);
+                if (entry instanceof BuiltinEntry && ((BuiltinEntry) entry).comparison != null) {
+                    Comparison negated = Builtins.negate(((BuiltinEntry) entry).comparison);
+                    Expression a = application.getArg(0);
+                    Expression b = application.getArg(1);
+                    if (isZero(b)) {
+                        DeferredLocal aLocal = functionCode.newLocal(TypeId.INT);
+                        generateExpression(functionCode, a, aLocal, environment, module);
+                        functionCode.compareZ(negated, falseLabel, aLocal);
+                    } else if (isZero(a)) {
+                        DeferredLocal bLocal = functionCode.newLocal(TypeId.INT);
+                        generateExpression(functionCode, b, bLocal, environment, module);
+                        functionCode.compareZ(Builtins.swap(negated), falseLabel, bLocal);
+                    } else {
+                        DeferredLocal aLocal = functionCode.newLocal(TypeId.INT);
+                        DeferredLocal bLocal = functionCode.newLocal(TypeId.INT);
+                        generateExpression(functionCode, a, aLocal, environment, module);
+                        generateExpression(functionCode, b, bLocal, environment, module);
+                        functionCode.compare(negated, falseLabel, aLocal, bLocal);
+                    }
+                    return;
+                }
+            }
+        }
+        // condition is always a primitive boolean
+        DeferredLocal conditionResult = functionCode.newLocal(TypeId.BOOLEAN);
+        generateExpression(functionCode, condition, conditionResult, environment, module);
+        functionCode.compareZ(falseLabel, conditionResult);
+    }
+
+    private static boolean isZero(Expression expression) {
+        return expression instanceof Expressions.Int && ((Expressions.Int) expression).number == 0;
+    }
+
     private static void generateApplication(final FunctionCode functionCode,
                                             final Expressions.Application application,
                                             final DeferredLocal target,
                                             final CodegenEnvironment environment,
-                                            final Module module) {
-        TypeId lambdaType = convertToTypeId(application.function.getType());
-        DeferredLocal lambdaLocal = functionCode.getOrCreateLocal(target.getPos() + 1, lambdaType);
-        DeferredLocal lambdaСLocal = functionCode.getOrCreateLocal(target.getPos() + 2, TypeId.OBJECT);
-        generateExpression(functionCode, application.function, lambdaСLocal, environment, module);
-        functionCode.cast(lambdaLocal, lambdaСLocal);
-
-        // eval args and put into locals
+                                            final Module module,
+                                            final TailPosition tail) {
+        if (application.function instanceof Expressions.Variable) {
+            EnvironmentEntry entry = environment.lookup((Expressions.Variable) application.function);
+            if (tail != null && entry == tail.self && tail.params.length == application.getArgs().size()) {
+                generateTailCall(functionCode, application, tail, target, environment, module);
+                return;
+            } else if (entry instanceof BuiltinEntry) {
+                generateBuiltinApplication(functionCode, application, (BuiltinEntry) entry, target, environment, module);
+                return;
+            } else if (entry instanceof FunctionEntry
+                    && ((FunctionEntry) entry).argTypes.length == application.getArgs().size()) {
+                generateStaticApplication(functionCode, application, (FunctionEntry) entry, target, environment, module);
+                return;
+            }
+        }
+
+        TypeId lambdaType = convertToTypeId(application.function.getType(), module);
+        DeferredLocal lambdaLocal = functionCode.newLocal(lambdaType);
+        generateExpression(functionCode, application.function, lambdaLocal, environment, module);
+
+        // eval args and put into locals, args of functions are boxed
         int argsCount = application.getArgs().size();
         DeferredLocal[] args = new DeferredLocal[argsCount];
         for (int i = 0; i < argsCount; i++) {
             Expression arg = application.getArg(i);
-            DeferredLocal argLocalWrapper = functionCode.getOrCreateLocal(target.getPos() + i + 1,
-                    convertToTypeId(application.function.getType().getArg(i)));
+            DeferredLocal argLocalWrapper = functionCode.newLocal(TypeId.OBJECT);
             generateExpression(functionCode, arg, argLocalWrapper, environment, module);
             args[i] = argLocalWrapper;
         }
 
         // generate call
-        TypeId[] lambdaArgsTypes = convertToTypeId(application.function.getType().args);
-        MethodId lambdaApplyMethod = lambdaType.getMethod(TypeId.OBJECT, "apply", lambdaArgsTypes);
-        functionCode.invokeVirtual(lambdaApplyMethod, target, lambdaLocal, args);
+        MethodId lambdaApplyMethod = Module.applyMethod(lambdaType, argsCount);
+        if (target.getTypeId().equals(TypeId.OBJECT)) {
+            functionCode.invokeVirtual(lambdaApplyMethod, target, lambdaLocal, args);
+        } else {
+            DeferredLocal result = functionCode.newLocal(TypeId.OBJECT);
+            functionCode.invokeVirtual(lambdaApplyMethod, result, lambdaLocal, args);
+            coerce(functionCode, target, result, TypeId.OBJECT);
+        }
+    }
+
+    /**
+     * Self call in tail position: args are evaluated into temporaries (they may read current params),
+     * then moved to params, and control jumps to the start of the function, so the stack does not grow
+     */
+    private static void generateTailCall(final FunctionCode functionCode,
+                                         final Expressions.Application application,
+                                         final TailPosition tail,
+                                         final DeferredLocal target,
+                                         final CodegenEnvironment environment,
+                                         final Module module) {
+        int argsCount = application.getArgs().size();
+        DeferredLocal[] args = new DeferredLocal[argsCount];
+        for (int i = 0; i < argsCount; i++) {
+            args[i] = functionCode.newLocal(tail.paramTypes[i]);
+            generateExpression(functionCode, application.getArg(i), args[i], environment, module);
+        }
+        for (int i = 0; i < argsCount; i++) {
+            functionCode.move(tail.params[i], args[i]);
+        }
+        functionCode.jump(tail.start);
+    }
+
+    /**
+     * Builtin is called directly: args are evaluated into primitive registers and the operation is done in place
+     */
+    private static void generateBuiltinApplication(final FunctionCode functionCode,
+                                                   final Expressions.Application application,
+                                                   final BuiltinEntry builtin,
+                                                   final DeferredLocal target,
+                                                   final CodegenEnvironment environment,
+                                                   final Module module) {
+        int argsCount = application.getArgs().size();
+        DeferredLocal[] args = new DeferredLocal[argsCount];
+        for (int i = 0; i < argsCount; i++) {
+            args[i] = functionCode.newLocal(builtin.argType);
+            generateExpression(functionCode, application.getArg(i), args[i], environment, module);
+        }
+        if (target.getTypeId().equals(builtin.resultType)) {
+            builtin.delegate.apply(functionCode, target, args);
+        } else {
+            DeferredLocal result = functionCode.newLocal(builtin.resultType);
+            builtin.delegate.apply(functionCode, result, args);
+            coerce(functionCode, target, result, builtin.resultType);
+        }
+    }
+
+    /**
+     * Known definition is called with invoke-static, args are evaluated right into registers of method param types
+     */
+    private static void generateStaticApplication(final FunctionCode functionCode,
+                                                  final Expressions.Application application,
+                                                  final FunctionEntry function,
+                                                  final DeferredLocal target,
+                                                  final CodegenEnvironment environment,
+                                                  final Module module) {
+        int argsCount = application.getArgs().size();
+        DeferredLocal[] args = new DeferredLocal[argsCount];
+        for (int i = 0; i < argsCount; i++) {
+            args[i] = functionCode.newLocal(function.argTypes[i]);
+            generateExpression(functionCode, application.getArg(i), args[i], environment, module);
+        }
+        if (target.getTypeId().equals(function.resultType)) {
+            functionCode.call(function.method, target, args);
+        } else {
+            DeferredLocal result = functionCode.newLocal(function.resultType);
+            functionCode.call(function.method, result, args);
+            coerce(functionCode, target, result, function.resultType);
+        }
     }
 
     private static void generateVarExpression(final FunctionCode functionCode,
                                               final Expressions.Variable expr,
                                               final DeferredLocal target,
                                               final CodegenEnvironment environment) {
-        final EnvironmentEntry lookedUpEntry = environment.lookup(expr.name);
+        final EnvironmentEntry lookedUpEntry = environment.lookup(expr);
         if (lookedUpEntry == null) {
             throw new RuntimeException(expr.name + " is not found in scope");
-        } else {
-            if (lookedUpEntry instanceof NamedArgEntry) {
-                NamedArgEntry namedArgEntry = (NamedArgEntry) lookedUpEntry;
-                functionCode.move(target, namedArgEntry.varWrapper);
-            } else if (lookedUpEntry instanceof LetEntry) {
-                LetEntry letEntry = (LetEntry) lookedUpEntry;
-                functionCode.move(target, letEntry.varWrapper);
-            } else if (lookedUpEntry instanceof DefinitionEntry) {
-                DefinitionEntry definitionEntry = (DefinitionEntry) lookedUpEntry;
-                functionCode.sget(definitionEntry.fieldId, target);
-            } else if (lookedUpEntry instanceof ThisEntry) { // this shit does not work on nested letrecs
-                ThisEntry thisEntry = (ThisEntry) lookedUpEntry;
-                functionCode.move(target, functionCode.getThis(thisEntry.typeId));
-            } else {
-                throw new RuntimeException();
-            }
         }
+        lookedUpEntry.load(functionCode, target);
     }
 
     private static void generateNumber(final FunctionCode functionCode,
                                        final Expressions.Int expr,
                                        final DeferredLocal target) {
-        DeferredLocal result = functionCode.getOrCreateLocal(target.getPos() + 1, TypeId.INT);
-        functionCode.load(result, expr.number);
-        functionCode.call(Module.METHOD_INT_VALUE_OF, target, result);
+        functionCode.load(target, expr.number);
     }
 
     private static void generateBoolean(final FunctionCode functionCode,
                                         final Expressions.Bool expr,
                                         final DeferredLocal target) {
-        DeferredLocal result = functionCode.getOrCreateLocal(target.getPos() + 1, TypeId.BOOLEAN);
-        functionCode.load(result, expr.value);
-        functionCode.call(Module.METHOD_BOOLEAN_VALUE_OF, target, result);
+        functionCode.load(target, expr.value);
+    }
+
+    /**
+     * Moves value from source to target, converting its representation:
+     * primitives are boxed, when they are moved to objects, and unboxed back,
+     * other objects are casted to the target type
+     */
+    static void coerce(final FunctionCode functionCode,
+                       final DeferredLocal target,
+                       final LocalWrapper source,
+                       final TypeId sourceType) {
+        TypeId targetType = target.getTypeId();
+        if (targetType.equals(sourceType)) {
+            functionCode.move(target, source);
+        } else if (sourceType.equals(TypeId.INT)) {
+            functionCode.call(Module.METHOD_INT_VALUE_OF, target, source);
+        } else if (sourceType.equals(TypeId.BOOLEAN)) {
+            functionCode.call(Module.METHOD_BOOLEAN_VALUE_OF, target, source);
+        } else if (targetType.equals(TypeId.INT)) {
+            DeferredLocal boxed = functionCode.newLocal(Module.BOXED_INT);
+            functionCode.cast(boxed, source);
+            functionCode.invokeVirtual(Module.METHOD_INT_VALUE, target, boxed);
+        } else if (targetType.equals(TypeId.BOOLEAN)) {
+            DeferredLocal boxed = functionCode.newLocal(Module.BOXED_BOOLEAN);
+            functionCode.cast(boxed, source);
+            functionCode.invokeVirtual(Module.METHOD_BOOLEAN_VALUE, target, boxed);
+        } else if (targetType.equals(TypeId.OBJECT)) {
+            functionCode.move(target, source);
+        } else {
+            functionCode.cast(target, source);
+        }
+    }
 
+    /**
+     * Functions are called through FunctionN classes, so all their args are objects
+     */
+    private static TypeId[] erasedArgs(int count) {
+        TypeId[] args = new TypeId[count];
+        Arrays.fill(args, TypeId.OBJECT);
+        return args;
     }
 
-    private static TypeId[] convertToTypeId(List<Type> types) {
+    private static TypeId[] convertToTypeId(List<Type> types, Module module) {
         List<TypeId> result = new ArrayList<>();
         for (Type type : types) {
-            result.add(convertToTypeId(type));
+            result.add(convertToTypeId(type, module));
         }
         return result.toArray(new TypeId[types.size()]);
     }
 
-    private static TypeId convertToTypeId(Type type) {
-        if (type instanceof TLiteral) {
+    /**
+     * Int and Bool are kept in primitive registers, type variables (polymorphic values) - in objects
+     * Functions are FunctionN of their arity, FunctionN is declared in the module, if it is not yet
+     */
+    private static TypeId convertToTypeId(Type type, Module module) {
+        if (type == integer()) {
+            return TypeId.INT;
+        } else if (type == bool()) {
+            return TypeId.BOOLEAN;
+        } else if (type instanceof TLiteral) {
             return TypeId.OBJECT;
         } else if (type instanceof TFunction) {
-            int argsCount = ((TFunction) type).args.size();
-            switch (argsCount) {
-                case 0:
-                    return Module.FUNCTION_TYPE_0;
-                case 1:
-                    return Module.FUNCTION_TYPE_1;
-                case 2:
-                    return Module.FUNCTION_TYPE_2;
-                default:
-                    throw new RuntimeException("Only 0, 1 and 2 arg lambdas are supported");
-            }
+            return module.functionType(((TFunction) type).args.size());
         } else if (type instanceof Types.TVariable) {
-            System.out.println("Converting type variable!");
             return TypeId.OBJECT;
         } else {
             throw new RuntimeException("Unknown type to convert to TypeId");
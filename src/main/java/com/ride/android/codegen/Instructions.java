@@ -5,9 +5,75 @@ import com.android.dx.Code;
 import com.android.dx.Comparison;
 import com.android.dx.Label;
 
+/**
+ * Deferred instructions of {@link FunctionCode}
+ * <p>
+ * Every instruction tells which locals it reads and writes, and how it transfers control,
+ * so control flow and liveness of locals are known before locals are generated (see {@link RegisterAllocator}).
+ */
 public class Instructions {
+    static final LocalWrapper[] NO_LOCALS = new LocalWrapper[0];
+
     interface Instruction {
         void generate(Code code);
+
+        /**
+         * Local written by the instruction, or null
+         */
+        default LocalWrapper def() {
+            return null;
+        }
+
+        /**
+         * Locals read by the instruction
+         */
+        default LocalWrapper[] uses() {
+            return NO_LOCALS;
+        }
+
+        /**
+         * Label the instruction may jump to, or null
+         */
+        default Label branchTarget() {
+            return null;
+        }
+
+        /**
+         * False if the next instruction is never executed after this one (jump or return)
+         */
+        default boolean fallsThrough() {
+            return true;
+        }
+    }
+
+    /**
+     * Straight-line instruction, generated by the given code
+     */
+    static class Operation implements Instruction {
+        final LocalWrapper def;
+        final LocalWrapper[] uses;
+        final Instruction body;
+
+        Operation(LocalWrapper def, Instruction body, LocalWrapper... uses) {
+            this.def = def;
+            this.uses = uses;
+            this.body = body;
+        }
+
+        @Override
+        public void generate(Code code) {
+            body.generate(code);
+        }
+
+        @Override
+        public LocalWrapper def() {
+            return def;
+        }
+
+        @Override
+        public LocalWrapper[] uses() {
+            return uses;
+        }
     }
 
     static class BinaryInstruction implements Instruction {
@@ -25,6 +91,16 @@ public class Instructions {
         public void generate(Code code) {
             code.op(op, dest.getRealLocal(), a.getRealLocal(), b.getRealLocal());
         }
+
+        @Override
+        public LocalWrapper def() {
+            return dest;
+        }
+
+        @Override
+        public LocalWrapper[] uses() {
+            return new LocalWrapper[]{a, b};
+        }
     }
 
     static class LoadInstruction<T> implements Instruction {
@@ -41,6 +117,11 @@ public class Instructions {
             code.loadConstant(dest.getRealLocal(), constant);
 
         }
+
+        @Override
+        public LocalWrapper def() {
+            return dest;
+        }
     }
 
     static class CompareInstruction implements Instruction {
@@ -59,6 +140,16 @@ public class Instructions {
         public void generate(Code code) {
             code.compare(comparison, label, a.getRealLocal(), b.getRealLocal());
         }
+
+        @Override
+        public LocalWrapper[] uses() {
+            return new LocalWrapper[]{a, b};
+        }
+
+        @Override
+        public Label branchTarget() {
+            return label;
+        }
     }
 
     static class CompareZInstruction implements Instruction {
@@ -76,6 +167,16 @@ public class Instructions {
         public void generate(Code code) {
             code.compareZ(comparison, label, a.getRealLocal());
         }
+
+        @Override
+        public LocalWrapper[] uses() {
+            return new LocalWrapper[]{a};
+        }
+
+        @Override
+        public Label branchTarget() {
+            return label;
+        }
     }
 
     static class JumpInstruction implements Instruction {
@@ -89,5 +190,56 @@ public class Instructions {
         public void generate(Code code) {
             code.jump(label);
         }
+
+        @Override
+        public Label branchTarget() {
+            return label;
+        }
+
+        @Override
+        public boolean fallsThrough() {
+            return false;
+        }
+    }
+
+    static class MarkInstruction implements Instruction {
+        final Label label;
+
+        MarkInstruction(Label label) {
+            this.label = label;
+        }
+
+        @Override
+        public void generate(Code code) {
+            code.mark(label);
+        }
+    }
+
+    static class ReturnInstruction implements Instruction {
+        // null for void return
+        final LocalWrapper result;
+
+        ReturnInstruction(LocalWrapper result) {
+            this.result = result;
+        }
+
+        @Override
+        public void generate(Code code) {
+            if (result == null) {
+                code.returnVoid();
+            } else {
+                code.returnValue(result.getRealLocal());
+            }
+        }
+
+        @Override
+        public LocalWrapper[] uses() {
+            return result == null ? NO_LOCALS : new LocalWrapper[]{result};
+        }
+
+        @Override
+        public boolean fallsThrough() {
+            return false;
+        }
     }
 }
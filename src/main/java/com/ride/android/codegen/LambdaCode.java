@@ -1,25 +1,61 @@
 package com.ride.android.codegen;
 
+import com.android.dx.DexMaker;
+import com.android.dx.FieldId;
 import com.android.dx.MethodId;
 import com.android.dx.TypeId;
 
+import java.lang.reflect.Modifier;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Code of lambda class: constructor and apply method
+ * <p>
+ * Closure keeps captured values in final fields, constructor takes them in the same order.
+ * Class is declared in dex, when it is compiled.
+ */
 public class LambdaCode implements Translatable {
+    private final TypeId superType;
     private final TypeId lambdaType;
+    private final FieldId[] captureFields;
     public final FunctionCode applyCode, constructorCode;
 
-    public LambdaCode(TypeId superType, TypeId lambdaType, FunctionCode applyCode, FunctionCode constructorCode) {
+    public LambdaCode(TypeId superType, TypeId lambdaType, FieldId[] captureFields,
+                      FunctionCode applyCode, FunctionCode constructorCode) {
+        this.superType = superType;
         this.lambdaType = lambdaType;
+        this.captureFields = captureFields;
         this.applyCode = applyCode;
         this.constructorCode = constructorCode;
 
-        constructorCode.invokeConstructorSuper(superType.getConstructor(), constructorCode.getThis(lambdaType));
+        ParamLocal thisLocal = constructorCode.getThis(lambdaType);
+        constructorCode.invokeConstructorSuper(superType.getConstructor(), thisLocal);
+        for (int i = 0; i < captureFields.length; i++) {
+            constructorCode.iput(captureFields[i], thisLocal, constructorCode.getParam(i, captureFields[i].getType()));
+        }
     }
 
     @Override
-    public void compile() {
+    public void compile(DexMaker maker) {
+        maker.declare(lambdaType, lambdaType.getName() + ".compiled", Modifier.PUBLIC, superType);
+        for (FieldId captureField : captureFields) {
+            maker.declare(captureField, Modifier.PRIVATE | Modifier.FINAL, null);
+        }
         constructorCode.returnVoid();
-        constructorCode.compile();
-        applyCode.compile();
+        constructorCode.compile(maker);
+        applyCode.compile(maker);
+    }
+
+    @Override
+    public Set<Object> getReferences() {
+        Set<Object> references = new HashSet<>(constructorCode.getReferences());
+        references.addAll(applyCode.getReferences());
+        references.add(superType);
+        for (FieldId captureField : captureFields) {
+            references.add(captureField.getType());
+        }
+        return references;
     }
 
     public TypeId getLambdaType() {
@@ -29,4 +65,8 @@ public class LambdaCode implements Translatable {
     public MethodId getConstructorMethod() {
         return constructorCode.getMethodId();
     }
+
+    public FieldId getCaptureField(int i) {
+        return captureFields[i];
+    }
 }
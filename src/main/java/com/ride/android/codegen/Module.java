@@ -2,9 +2,17 @@ package com.ride.android.codegen;
 
 import com.android.dx.*;
 
+import java.io.PrintStream;
 import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * This is module
@@ -14,20 +22,28 @@ import java.util.List;
  * <p>
  * There is a Main class - it is the entry point of program (contains main method)
  * <p>
- * When function is defined, new lambda class is generated and it is instantiated into a static field of Main
- * So calling a defined function means
+ * When function is defined, it becomes a static method of Main, so calling a defined function is a single invoke-static.
+ * Lambdas, that are only called and never used as values, are static methods of Main too
+ * (see {@link com.ride.android.closures.LambdaLifter}).
+ * If defined function is used as a value, new lambda class (calling that method) is generated
+ * and it is instantiated into a static field of Main.
+ * With lazy initialization the field is in the lambda class itself and it is initialized by static initializer
+ * of that class (initialization-on-demand holder), so the object is made only when the program first reads it,
+ * and startup does not depend on count of definitions.
+ * Function values are instances of abstract FunctionN classes, one per count of args.
+ * FunctionN is made on demand and compiled like other declarations, so only arities, that are used by compiled code,
+ * get their classes.
+ * So calling a function value means
  * - MOV function lambda field into local
  * - CALL apply method on that local (no cast needed, because there is an interface for each lambda)
  * <p>
  * When usual expression occurs, it is just generated into the main method
+ * <p>
+ * Only code, that is reachable from the entry points (main), is put into dex:
+ * definitions, that are never called, lambdas, that are never instantiated, and builtins, that are never
+ * used as values, are dropped, and so their fields are not initialized in static initializer of Main.
  */
 class Module {
-    public static final TypeId FUNCTION_TYPE_0 = TypeId.get("LFunction0;");
-    public static final MethodId APPLY_TYPE_0 = FUNCTION_TYPE_0.getMethod(TypeId.OBJECT, "apply");
-    public static final TypeId FUNCTION_TYPE_1 = TypeId.get("LFunction1;");
-    public static final MethodId APPLY_TYPE_1 = FUNCTION_TYPE_1.getMethod(TypeId.OBJECT, "apply", TypeId.OBJECT);
-    public static final TypeId FUNCTION_TYPE_2 = TypeId.get("LFunction2;");
-    public static final MethodId APPLY_TYPE_2 = FUNCTION_TYPE_2.getMethod(TypeId.OBJECT, "apply", TypeId.OBJECT, TypeId.OBJECT);
     public static final TypeId EXCEPTION_TYPE = TypeId.get(RuntimeException.class);
     private static final TypeId MAIN_CLASS_TYPE = TypeId.get("LMain;");
 
@@ -37,55 +53,161 @@ class Module {
             Module.BOXED_BOOLEAN.getMethod(TypeId.BOOLEAN, "booleanValue");
     public static final MethodId<Boolean, Boolean> METHOD_BOOLEAN_VALUE_OF =
             Module.BOXED_BOOLEAN.getMethod(Module.BOXED_BOOLEAN, "valueOf", TypeId.BOOLEAN);
+    public static final MethodId<Integer, Integer> METHOD_INT_VALUE =
+            Module.BOXED_INT.getMethod(TypeId.INT, "intValue");
     public static final MethodId<Integer, Integer> METHOD_INT_VALUE_OF =
             Module.BOXED_INT.getMethod(Module.BOXED_INT, "valueOf", TypeId.INT);
 
-    private final List<Translatable> funcs = new ArrayList<>();
+    // code, that is compiled only if it is reachable, by declared method, lambda type or field
+    private final Map<Object, Translatable> declarations = new LinkedHashMap<>();
+    // code, that is always compiled
+    private final List<Translatable> entryPoints = new ArrayList<>();
+    // all methods, for register report
+    private final List<FunctionCode> methods = new ArrayList<>();
     private final DexMaker maker;
     private final FunctionCode clinit;
+    // true, if some field is initialized by clinit
+    private boolean clinitUsed = false;
+    // function objects of definitions are initialized by their own classes, see DefinitionField
+    private final boolean lazyInit;
+    private int removedDeclarations = 0;
     private int generatedLambdas = 0;
-    private int generatedDefinitions = 0;
+    private int generatedMethods = 0;
 
     public Module() {
+        this(false);
+    }
+
+    /**
+     * @param lazyInit if true, function objects of definitions are made on first use, instead of in main class init
+     */
+    public Module(boolean lazyInit) {
+        this.lazyInit = lazyInit;
         maker = new DexMaker();
         maker.declare(MAIN_CLASS_TYPE, "Main.compiled", Modifier.PUBLIC, TypeId.OBJECT);
 
-        maker.declare(FUNCTION_TYPE_0, "Function.compiled", Modifier.PUBLIC | Modifier.ABSTRACT, TypeId.OBJECT);
-        declareClass(APPLY_TYPE_0);
-        maker.declare(FUNCTION_TYPE_1, "Function.compiled", Modifier.PUBLIC | Modifier.ABSTRACT, TypeId.OBJECT);
-        declareClass(APPLY_TYPE_1);
-        maker.declare(FUNCTION_TYPE_2, "Function.compiled", Modifier.PUBLIC | Modifier.ABSTRACT, TypeId.OBJECT);
-        declareClass(APPLY_TYPE_2);
+        // fields of definitions are initialized here, when they are compiled
+        clinit = new FunctionCode(MAIN_CLASS_TYPE.getStaticInitializer(), Modifier.STATIC);
+    }
 
-        MethodId staticInitializer = MAIN_CLASS_TYPE.getStaticInitializer();
-        Code clinitCode = maker.declare(staticInitializer, Modifier.STATIC);
-        clinit = new FunctionCode(clinitCode, staticInitializer);
-        funcs.add(clinit);
+    /**
+     * Type of functions with the count of args, its class is made by {@link #functionType(int)}
+     */
+    static TypeId functionTypeName(int arity) {
+        return TypeId.get("LFunction" + arity + ";");
     }
 
-    private void declareClass(MethodId applyType1) {
-        Code apply1code = maker.declare(applyType1, Modifier.PUBLIC);
-        Local exceptionLocal = apply1code.newLocal(EXCEPTION_TYPE);
-        apply1code.newInstance(exceptionLocal, EXCEPTION_TYPE.getConstructor());
-        apply1code.throwValue(exceptionLocal);
+    /**
+     * Apply method of functions with the count of args, all args are objects
+     */
+    static MethodId applyMethod(TypeId functionType, int arity) {
+        TypeId[] parameters = new TypeId[arity];
+        Arrays.fill(parameters, TypeId.OBJECT);
+        return functionType.getMethod(TypeId.OBJECT, "apply", parameters);
     }
 
     /**
-     * Declares static functions
+     * Returns type of functions with the count of args
+     * FunctionN class is made on first request, and it is compiled only if compiled code uses the type:
+     * as superclass of lambda, in signature, field, cast or call of apply
+     */
+    TypeId functionType(int arity) {
+        TypeId functionType = functionTypeName(arity);
+        if (!declarations.containsKey(functionType)) {
+            declarations.put(functionType, new FunctionClass(functionType, arity));
+        }
+        return functionType;
+    }
+
+    /**
+     * Abstract FunctionN class, its apply throws, lambdas override it
+     */
+    private static class FunctionClass implements Translatable {
+        private final TypeId functionType;
+        private final int arity;
+
+        FunctionClass(TypeId functionType, int arity) {
+            this.functionType = functionType;
+            this.arity = arity;
+        }
+
+        @Override
+        public void compile(DexMaker maker) {
+            maker.declare(functionType, "Function.compiled", Modifier.PUBLIC | Modifier.ABSTRACT, TypeId.OBJECT);
+
+            MethodId constructor = functionType.getConstructor();
+            Code constructorCode = maker.declare(constructor, Modifier.PUBLIC);
+            constructorCode.invokeDirect(TypeId.OBJECT.getConstructor(), null, constructorCode.getThis(functionType));
+            constructorCode.returnVoid();
+
+            Code applyCode = maker.declare(applyMethod(functionType, arity), Modifier.PUBLIC);
+            Local exceptionLocal = applyCode.newLocal(EXCEPTION_TYPE);
+            applyCode.newInstance(exceptionLocal, EXCEPTION_TYPE.getConstructor());
+            applyCode.throwValue(exceptionLocal);
+        }
+
+        @Override
+        public Set<Object> getReferences() {
+            return Collections.emptySet();
+        }
+    }
+
+    /**
+     * Declares static function, that is an entry point: it is always compiled
      */
     public FunctionCode make(TypeId returnType, String name, TypeId... parameters) {
+        FunctionCode functionCode = newStaticFunction(returnType, name, parameters);
+        entryPoints.add(functionCode);
+        return functionCode;
+    }
+
+    /**
+     * Declares static function, that is compiled only if it is called by compiled code
+     */
+    FunctionCode makeFunction(TypeId returnType, String name, TypeId... parameters) {
+        FunctionCode functionCode = newStaticFunction(returnType, name, parameters);
+        declarations.put(functionCode.getMethodId(), functionCode);
+        return functionCode;
+    }
+
+    private FunctionCode newStaticFunction(TypeId returnType, String name, TypeId... parameters) {
         // make function typeId in Main class
         MethodId methodType = MAIN_CLASS_TYPE.getMethod(returnType, name, parameters);
 
-        // declare it
-        Code code = maker.declare(methodType, Modifier.STATIC | Modifier.PUBLIC);
-
         // wrap it into our delegate
-        FunctionCode functionCode = new FunctionCode(code, methodType);
-        funcs.add(functionCode);
+        FunctionCode functionCode = new FunctionCode(methodType, Modifier.STATIC | Modifier.PUBLIC);
+        methods.add(functionCode);
         return functionCode;
     }
 
+    /**
+     * Makes unique name of static method for the definition
+     * Definition may be redefined, and its name may contain chars, that are not allowed in dex names
+     */
+    String definitionMethodName(String name) {
+        return methodName("define", name);
+    }
+
+    /**
+     * Makes unique name of static method for the lifted lambda, name is the name of its variable
+     */
+    String liftedMethodName(String name) {
+        return methodName("lifted", name);
+    }
+
+    private String methodName(String prefix, String name) {
+        StringBuilder result = new StringBuilder(prefix).append(generatedMethods++).append('_');
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_') {
+                result.append(c);
+            } else {
+                result.append('$').append(Integer.toHexString(c));
+            }
+        }
+        return result.toString();
+    }
+
     static class ModuleDefinition {
         final LambdaCode lambdaCode;
         final FieldId definitionField;
@@ -98,58 +220,96 @@ class Module {
 
     /**
      * Declares new lambda, instantiates it into static field with the name
+     * Field is declared and initialized only if it is read by compiled code
      * <p>
      * Returns Code delegate (with which you do stuff in the apply method)
      */
     ModuleDefinition makeDefine(String name, TypeId returnType, TypeId... parameters) {
         LambdaCode lambdaCode = makeLambda(returnType, parameters);
 
-        FieldId functionField = MAIN_CLASS_TYPE.getField(lambdaCode.getLambdaType(), name);
-        maker.declare(functionField, Modifier.PUBLIC | Modifier.STATIC, null);
-        LocalWrapper lambdaLocal = clinit.getOrCreateLocal(generatedDefinitions++, lambdaCode.getLambdaType());
-        clinit.newInstance(lambdaCode.getConstructorMethod(), lambdaLocal);
-        clinit.sput(functionField, lambdaLocal);
+        TypeId lambdaType = lambdaCode.getLambdaType();
+        FieldId functionField = lazyInit
+                ? lambdaType.getField(lambdaType, "instance")
+                : MAIN_CLASS_TYPE.getField(lambdaType, name);
+        declarations.put(functionField, new DefinitionField(functionField, lambdaCode));
         return new ModuleDefinition(lambdaCode, functionField);
     }
 
+    /**
+     * Static field with the lambda instance: field of Main, that is initialized with Main,
+     * or field of the lambda class, that is initialized, when the class is first used
+     */
+    private class DefinitionField implements Translatable {
+        private final FieldId field;
+        private final LambdaCode lambdaCode;
+
+        DefinitionField(FieldId field, LambdaCode lambdaCode) {
+            this.field = field;
+            this.lambdaCode = lambdaCode;
+        }
+
+        @Override
+        public void compile(DexMaker maker) {
+            if (lazyInit) {
+                maker.declare(field, Modifier.PUBLIC | Modifier.STATIC | Modifier.FINAL, null);
+                FunctionCode holderInit = new FunctionCode(lambdaCode.getLambdaType().getStaticInitializer(),
+                        Modifier.STATIC);
+                initialize(holderInit);
+                holderInit.returnVoid();
+                holderInit.compile(maker);
+                methods.add(holderInit);
+            } else {
+                maker.declare(field, Modifier.PUBLIC | Modifier.STATIC, null);
+                initialize(clinit);
+                clinitUsed = true;
+            }
+        }
+
+        private void initialize(FunctionCode init) {
+            // typed as object, so one register of Main init is shared by all definitions
+            LocalWrapper lambdaLocal = init.newLocal(TypeId.OBJECT);
+            init.newInstance(lambdaCode.getConstructorMethod(), lambdaLocal);
+            init.sput(field, lambdaLocal);
+        }
+
+        @Override
+        public Set<Object> getReferences() {
+            return Collections.singleton(lambdaCode.getLambdaType());
+        }
+    }
+
     /**
      * Declares lambda with apply method and costructor
      */
     LambdaCode makeLambda(TypeId returnType, TypeId... parameters) {
-        final int argCount = parameters.length;
-        TypeId superType;
-        switch (argCount) {
-            case 0:
-                superType = FUNCTION_TYPE_0;
-                break;
-            case 1:
-                superType = FUNCTION_TYPE_1;
-                break;
-            case 2:
-                superType = FUNCTION_TYPE_2;
-                break;
-            default:
-                throw new RuntimeException("Only 1 and 2 arg lambdas are supported");
-        }
-
-        // declare a subclass of Function
-        String lambdaName = "LLambda" + generatedLambdas++ + ";";
-        TypeId lambdaType = TypeId.get(lambdaName);
-        maker.declare(lambdaType, lambdaName + ".compiled", Modifier.PUBLIC, superType);
-
-        // declare constructor
-        MethodId lambdaConstructorType = lambdaType.getConstructor();
-        Code lambdaConstructorCode = maker.declare(lambdaConstructorType, Modifier.PUBLIC);
-
-        // declare "apply" method
+        return makeClosure(returnType, parameters, new TypeId[0]);
+    }
+
+    /**
+     * Declares lambda with a final field for each captured value, constructor takes values of captures
+     */
+    LambdaCode makeClosure(TypeId returnType, TypeId[] parameters, TypeId[] captures) {
+        TypeId superType = functionType(parameters.length);
+
+        // a subclass of Function
+        TypeId lambdaType = TypeId.get("LLambda" + generatedLambdas++ + ";");
+
+        // captures
+        FieldId[] captureFields = new FieldId[captures.length];
+        for (int i = 0; i < captures.length; i++) {
+            captureFields[i] = lambdaType.getField(captures[i], "capture" + i);
+        }
+
+        MethodId lambdaConstructorType = lambdaType.getConstructor(captures);
         MethodId applyMethodType = lambdaType.getMethod(TypeId.OBJECT, "apply", parameters);
-        Code applyMethodCode = maker.declare(applyMethodType, Modifier.PUBLIC);
 
-        LambdaCode lambdaCode = new LambdaCode(superType, lambdaType,
-                new FunctionCode(applyMethodCode, applyMethodType),
-                new FunctionCode(lambdaConstructorCode, lambdaConstructorType)
+        LambdaCode lambdaCode = new LambdaCode(superType, lambdaType, captureFields,
+                new FunctionCode(applyMethodType, Modifier.PUBLIC),
+                new FunctionCode(lambdaConstructorType, Modifier.PUBLIC)
         );
-        funcs.add(lambdaCode);
+        declarations.put(lambdaType, lambdaCode);
+        methods.add(lambdaCode.constructorCode);
+        methods.add(lambdaCode.applyCode);
         return lambdaCode;
     }
 
@@ -157,13 +317,67 @@ class Module {
         return make(TypeId.VOID, "main", TypeId.get(String[].class));
     }
 
+    /**
+     * Compiles entry points and declarations, that they use transitively, into dex
+     */
     byte[] compile() {
-        clinit.returnVoid();
+        Set<Object> reachable = new HashSet<>();
+        ArrayDeque<Translatable> queue = new ArrayDeque<>(entryPoints);
+        while (!queue.isEmpty()) {
+            for (Object reference : queue.poll().getReferences()) {
+                Translatable declaration = declarations.get(reference);
+                if (declaration != null && reachable.add(reference)) {
+                    queue.add(declaration);
+                }
+            }
+        }
 
-        for (Translatable func : funcs) {
-            func.compile();
+        for (Translatable entryPoint : entryPoints) {
+            entryPoint.compile(maker);
+        }
+        for (Map.Entry<Object, Translatable> declaration : declarations.entrySet()) {
+            if (reachable.contains(declaration.getKey())) {
+                declaration.getValue().compile(maker);
+            } else {
+                removedDeclarations++;
+            }
+        }
+        // after fields, that are initialized here, are compiled
+        if (clinitUsed) {
+            clinit.returnVoid();
+            clinit.compile(maker);
+            methods.add(clinit);
         }
 
         return maker.generate();
     }
+
+    /**
+     * Count of functions, lambdas, FunctionN classes and fields, that were not compiled, because nothing used them
+     * Module must be compiled
+     */
+    int getRemovedDeclarations() {
+        return removedDeclarations;
+    }
+
+    /**
+     * Prints count of locals for every method: requested by generator and left after register allocation
+     * Module must be compiled
+     */
+    void reportRegisters(PrintStream out) {
+        int totalLocals = 0;
+        int totalRegisters = 0;
+        int compiledMethods = 0;
+        for (FunctionCode method : methods) {
+            if (method.getRegisterCount() < 0) {
+                // removed
+                continue;
+            }
+            compiledMethods++;
+            out.println(method.getMethodId() + ": " + method.getLocalCount() + " -> " + method.getRegisterCount());
+            totalLocals += method.getLocalCount();
+            totalRegisters += method.getRegisterCount();
+        }
+        out.println("Locals in " + compiledMethods + " methods: " + totalLocals + " -> " + totalRegisters);
+    }
 }
@@ -2,18 +2,25 @@ package com.ride.android.codegen;
 
 import com.android.dx.Local;
 
+import java.util.function.Supplier;
+
 /**
  * Wraps function arguments - locals that are already "generated"
+ * Real local is taken from the code of the function, when the function is compiled
  */
 class ParamLocal<T> implements LocalWrapper<T> {
+    private final Supplier<Local<T>> supplier;
     private com.android.dx.Local<T> realLocal;
 
-    ParamLocal(Local<T> realLocal) {
-        this.realLocal = realLocal;
+    ParamLocal(Supplier<Local<T>> supplier) {
+        this.supplier = supplier;
     }
 
     @Override
     public Local<T> getRealLocal() {
+        if (realLocal == null) {
+            realLocal = supplier.get();
+        }
         return realLocal;
     }
 }
@@ -0,0 +1,222 @@
+package com.ride.android.codegen;
+
+import com.android.dx.Code;
+import com.android.dx.Label;
+import com.android.dx.Local;
+import com.android.dx.TypeId;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Maps virtual locals of a function to real locals, so that locals, that are never live at the same time, share one
+ * <p>
+ * Instructions are split into basic blocks, and liveness of locals, that cross blocks, is found by usual backward
+ * dataflow. Each local then gets a live interval over the instruction list: from its first to its last live point.
+ * Locals of the same type, whose intervals do not overlap, get the same real local: intervals are colored
+ * greedily in the order of their starts, which takes the least possible count of locals for an interval graph.
+ * <p>
+ * Locals used inside of a single block (most of temporaries) are not a part of the dataflow,
+ * their intervals are exact without it.
+ */
+final class RegisterAllocator {
+    private RegisterAllocator() {
+    }
+
+    /**
+     * Assigns real locals of the code to all locals, that are used by the instructions
+     * Returns count of declared real locals
+     */
+    static int allocate(Code code, List<Instructions.Instruction> instructions, List<DeferredLocal> locals) {
+        int size = instructions.size();
+        int count = locals.size();
+        int[] start = new int[count];
+        int[] end = new int[count];
+        Arrays.fill(start, Integer.MAX_VALUE);
+        Arrays.fill(end, -1);
+
+        // split into blocks: block starts at a label and after any branch
+        int[] blockOf = new int[size];
+        int[] blockStarts = new int[size + 1];
+        Map<Label, Integer> labelBlocks = new HashMap<>();
+        int blocks = 0;
+        for (int i = 0; i < size; i++) {
+            Instructions.Instruction instruction = instructions.get(i);
+            Instructions.Instruction previous = i > 0 ? instructions.get(i - 1) : null;
+            if (previous == null || instruction instanceof Instructions.MarkInstruction
+                    || !previous.fallsThrough() || previous.branchTarget() != null) {
+                blockStarts[blocks++] = i;
+            }
+            blockOf[i] = blocks - 1;
+            if (instruction instanceof Instructions.MarkInstruction) {
+                labelBlocks.put(((Instructions.MarkInstruction) instruction).label, blocks - 1);
+            }
+        }
+        blockStarts[blocks] = size;
+
+        // locals, that are live across blocks (or are read before written in their block), take part in dataflow
+        int[] firstBlock = new int[count];
+        Arrays.fill(firstBlock, -1);
+        int[] global = new int[count];
+        Arrays.fill(global, -1);
+        int globals = 0;
+        for (int i = 0; i < size; i++) {
+            Instructions.Instruction instruction = instructions.get(i);
+            for (LocalWrapper use : instruction.uses()) {
+                if (use instanceof DeferredLocal) {
+                    int local = ((DeferredLocal) use).getIndex();
+                    if (firstBlock[local] != blockOf[i] && global[local] < 0) {
+                        global[local] = globals++;
+                    }
+                    touch(start, end, local, i);
+                }
+            }
+            if (instruction.def() instanceof DeferredLocal) {
+                int local = ((DeferredLocal) instruction.def()).getIndex();
+                if (firstBlock[local] < 0) {
+                    firstBlock[local] = blockOf[i];
+                } else if (firstBlock[local] != blockOf[i] && global[local] < 0) {
+                    global[local] = globals++;
+                }
+                touch(start, end, local, i);
+            }
+        }
+
+        if (globals > 0) {
+            extendLiveRanges(instructions, blocks, blockStarts, labelBlocks, global, globals, start, end);
+        }
+        return color(code, locals, start, end);
+    }
+
+    private static void extendLiveRanges(List<Instructions.Instruction> instructions,
+                                         int blocks, int[] blockStarts, Map<Label, Integer> labelBlocks,
+                                         int[] global, int globals, int[] start, int[] end) {
+        // locals by their dataflow index
+        int[] globalLocals = new int[globals];
+        for (int local = 0; local < global.length; local++) {
+            if (global[local] >= 0) {
+                globalLocals[global[local]] = local;
+            }
+        }
+
+        BitSet[] gen = new BitSet[blocks];
+        BitSet[] kill = new BitSet[blocks];
+        int[][] successors = new int[blocks][];
+        for (int block = 0; block < blocks; block++) {
+            gen[block] = new BitSet();
+            kill[block] = new BitSet();
+            for (int i = blockStarts[block]; i < blockStarts[block + 1]; i++) {
+                Instructions.Instruction instruction = instructions.get(i);
+                for (LocalWrapper use : instruction.uses()) {
+                    if (use instanceof DeferredLocal) {
+                        int index = global[((DeferredLocal) use).getIndex()];
+                        if (index >= 0 && !kill[block].get(index)) {
+                            gen[block].set(index);
+                        }
+                    }
+                }
+                if (instruction.def() instanceof DeferredLocal) {
+                    int index = global[((DeferredLocal) instruction.def()).getIndex()];
+                    if (index >= 0) {
+                        kill[block].set(index);
+                    }
+                }
+            }
+
+            Instructions.Instruction last = instructions.get(blockStarts[block + 1] - 1);
+            int[] blockSuccessors = new int[2];
+            int successorCount = 0;
+            if (last.fallsThrough() && block + 1 < blocks) {
+                blockSuccessors[successorCount++] = block + 1;
+            }
+            if (last.branchTarget() != null) {
+                blockSuccessors[successorCount++] = labelBlocks.get(last.branchTarget());
+            }
+            successors[block] = Arrays.copyOf(blockSuccessors, successorCount);
+        }
+
+        BitSet[] liveIn = new BitSet[blocks];
+        BitSet[] liveOut = new BitSet[blocks];
+        for (int block = 0; block < blocks; block++) {
+            liveIn[block] = new BitSet();
+            liveOut[block] = new BitSet();
+        }
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int block = blocks - 1; block >= 0; block--) {
+                BitSet out = liveOut[block];
+                for (int successor : successors[block]) {
+                    out.or(liveIn[successor]);
+                }
+                BitSet in = (BitSet) out.clone();
+                in.andNot(kill[block]);
+                in.or(gen[block]);
+                if (!in.equals(liveIn[block])) {
+                    liveIn[block] = in;
+                    changed = true;
+                }
+            }
+        }
+
+        for (int block = 0; block < blocks; block++) {
+            BitSet in = liveIn[block];
+            for (int index = in.nextSetBit(0); index >= 0; index = in.nextSetBit(index + 1)) {
+                touch(start, end, globalLocals[index], blockStarts[block]);
+            }
+            BitSet out = liveOut[block];
+            for (int index = out.nextSetBit(0); index >= 0; index = out.nextSetBit(index + 1)) {
+                touch(start, end, globalLocals[index], blockStarts[block + 1] - 1);
+            }
+        }
+    }
+
+    /**
+     * Greedy coloring of intervals, ordered by start
+     * Intervals are closed, so a local written by an instruction never shares a real local with one read by it
+     */
+    private static int color(Code code, List<DeferredLocal> locals, int[] start, int[] end) {
+        int count = locals.size();
+        Integer[] order = new Integer[count];
+        for (int local = 0; local < count; local++) {
+            order[local] = local;
+        }
+        Arrays.sort(order, (a, b) -> Integer.compare(start[a], start[b]));
+
+        Local[] assigned = new Local[count];
+        PriorityQueue<Integer> active = new PriorityQueue<>((a, b) -> Integer.compare(end[a], end[b]));
+        Map<TypeId, ArrayDeque<Local>> free = new HashMap<>();
+        int registers = 0;
+        for (int local : order) {
+            if (end[local] < 0) {
+                // never used
+                break;
+            }
+            while (!active.isEmpty() && end[active.peek()] < start[local]) {
+                int expired = active.poll();
+                free.computeIfAbsent(locals.get(expired).getTypeId(), type -> new ArrayDeque<>()).push(assigned[expired]);
+            }
+            TypeId type = locals.get(local).getTypeId();
+            ArrayDeque<Local> freeOfType = free.get(type);
+            if (freeOfType != null && !freeOfType.isEmpty()) {
+                assigned[local] = freeOfType.pop();
+            } else {
+                assigned[local] = code.newLocal(type);
+                registers++;
+            }
+            locals.get(local).assign(assigned[local]);
+            active.add(local);
+        }
+        return registers;
+    }
+
+    private static void touch(int[] start, int[] end, int local, int position) {
+        start[local] = Math.min(start[local], position);
+        end[local] = Math.max(end[local], position);
+    }
+}
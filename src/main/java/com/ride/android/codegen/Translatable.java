@@ -1,5 +1,18 @@
 package com.ride.android.codegen;
 
+import com.android.dx.DexMaker;
+
+import java.util.Set;
+
 public interface Translatable {
-    void compile();
+    /**
+     * Declares the code in dex and generates it
+     */
+    void compile(DexMaker maker);
+
+    /**
+     * Methods, static fields and types, that are used by the code
+     * They are compiled along with it, see {@link Module}
+     */
+    Set<Object> getReferences();
 }
@@ -0,0 +1,232 @@
+package com.ride.android.optimizations;
+
+import com.ride.android.ast.Expression;
+import com.ride.android.ast.Expressions;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import static com.ride.android.types.Types.bool;
+import static com.ride.android.types.Types.integer;
+
+/**
+ * Constant folding and algebraic simplification
+ * <p>
+ * Calls of builtins with literal args are computed at compile time, conditions with literal condition
+ * are replaced by the taken branch, and identities like (* x 1), (+ x 0), (and x #t) are reduced to x.
+ * <p>
+ * Language has no side effects, but evaluation may fail (division by zero) or never end,
+ * so an expression is dropped only if it is a literal or a variable: (* x 0) is folded only for such x,
+ * and division by literal zero is kept, it throws at runtime, as it does without folding.
+ * <p>
+ * Builtin may be redefined by top-level definition, calls of redefined builtins are not folded.
+ * So one folder must see all top-level expressions of the program, in order.
+ * <p>
+ * Pass must be run after type checking, new nodes get their types from the nodes they replace.
+ */
+public final class ConstantFolder {
+    // ids of top-level definitions, seen so far
+    private final BitSet definitions = new BitSet();
+
+    /**
+     * Returns folded expression, it is the same instance, if nothing was folded
+     * Nodes of the input, that are not changed, are shared with the output
+     */
+    public Expression fold(Expression expression) {
+        if (expression instanceof Expressions.Application) {
+            return foldApplication((Expressions.Application) expression);
+        } else if (expression instanceof Expressions.IfExpr) {
+            Expressions.IfExpr ifExpr = (Expressions.IfExpr) expression;
+            Expression condition = fold(ifExpr.condition);
+            if (condition instanceof Expressions.Bool) {
+                return fold(((Expressions.Bool) condition).value ? ifExpr.ifBranch : ifExpr.elseBranch);
+            }
+            Expression ifBranch = fold(ifExpr.ifBranch);
+            Expression elseBranch = fold(ifExpr.elseBranch);
+            if (condition == ifExpr.condition && ifBranch == ifExpr.ifBranch && elseBranch == ifExpr.elseBranch) {
+                return ifExpr;
+            }
+            return Trees.typed(new Expressions.IfExpr(condition, ifBranch, elseBranch), ifExpr);
+        } else if (expression instanceof Expressions.Definition) {
+            Expressions.Definition definition = (Expressions.Definition) expression;
+            // definition is recursive, so the name is redefined in its own body too
+            definitions.set(definition.id);
+            Expression body = fold(definition.body);
+            if (body == definition.body) {
+                return definition;
+            }
+            return Trees.typed(new Expressions.Definition(definition.name, definition.getArgs(), body), definition);
+        } else if (expression instanceof Expressions.Lambda) {
+            Expressions.Lambda lambda = (Expressions.Lambda) expression;
+            Expression body = fold(lambda.body);
+            if (body == lambda.body) {
+                return lambda;
+            }
+            return Trees.typed(new Expressions.Lambda(lambda.args, body), lambda);
+        } else if (expression instanceof Expressions.Let) {
+            Expressions.Let let = (Expressions.Let) expression;
+            Expression varExpr = fold(let.varExpr);
+            Expression body = fold(let.body);
+            if (varExpr == let.varExpr && body == let.body) {
+                return let;
+            }
+            return Trees.typed(new Expressions.Let(let.var, varExpr, body), let);
+        } else if (expression instanceof Expressions.LetRec) {
+            Expressions.LetRec letRec = (Expressions.LetRec) expression;
+            Expression varExpr = fold(letRec.varExpr);
+            Expression body = fold(letRec.body);
+            if (varExpr == letRec.varExpr && body == letRec.body) {
+                return letRec;
+            }
+            return Trees.typed(new Expressions.LetRec(letRec.var, varExpr, body), letRec);
+        }
+        return expression;
+    }
+
+    private Expression foldApplication(Expressions.Application application) {
+        Expression function = fold(application.function);
+        boolean changed = function != application.function;
+        List<Expression> args = new ArrayList<>(application.getArgs().size());
+        for (Expression arg : application.getArgs()) {
+            Expression folded = fold(arg);
+            changed |= folded != arg;
+            args.add(folded);
+        }
+
+        if (function instanceof Expressions.Variable && args.size() == 2) {
+            Expressions.Variable variable = (Expressions.Variable) function;
+            if (variable.isGlobal() && !definitions.get(variable.id)) {
+                Expression folded = foldBuiltin(variable.name, args.get(0), args.get(1));
+                if (folded != null) {
+                    return folded;
+                }
+            }
+        }
+        if (!changed) {
+            return application;
+        }
+        return Trees.typed(new Expressions.Application(function, args), application);
+    }
+
+    /**
+     * Returns result of builtin call, or null, if it can not be computed at compile time
+     */
+    private static Expression foldBuiltin(String name, Expression a, Expression b) {
+        if (a instanceof Expressions.Int && b instanceof Expressions.Int) {
+            return foldIntegers(name, ((Expressions.Int) a).number, ((Expressions.Int) b).number);
+        }
+        if (a instanceof Expressions.Bool && b instanceof Expressions.Bool) {
+            return foldBooleans(name, ((Expressions.Bool) a).value, ((Expressions.Bool) b).value);
+        }
+        switch (name) {
+            case "+":
+                return isInt(a, 0) ? b : isInt(b, 0) ? a : null;
+            case "-":
+                return isInt(b, 0) ? a : null;
+            case "*":
+                if (isInt(a, 1)) {
+                    return b;
+                } else if (isInt(b, 1)) {
+                    return a;
+                } else if ((isInt(a, 0) && isTrivial(b)) || (isInt(b, 0) && isTrivial(a))) {
+                    return integerLiteral(0);
+                }
+                return null;
+            case "/":
+                return isInt(b, 1) ? a : null;
+            case "and":
+                if (isBool(a, true)) {
+                    return b;
+                } else if (isBool(b, true)) {
+                    return a;
+                } else if ((isBool(a, false) && isTrivial(b)) || (isBool(b, false) && isTrivial(a))) {
+                    return booleanLiteral(false);
+                }
+                return null;
+            case "or":
+                if (isBool(a, false)) {
+                    return b;
+                } else if (isBool(b, false)) {
+                    return a;
+                } else if ((isBool(a, true) && isTrivial(b)) || (isBool(b, true) && isTrivial(a))) {
+                    return booleanLiteral(true);
+                }
+                return null;
+            case "xor":
+                return isBool(a, false) ? b : isBool(b, false) ? a : null;
+            default:
+                return null;
+        }
+    }
+
+    private static Expression foldIntegers(String name, int a, int b) {
+        switch (name) {
+            case "+":
+                return integerLiteral(a + b);
+            case "-":
+                return integerLiteral(a - b);
+            case "*":
+                return integerLiteral(a * b);
+            case "/":
+                // division by zero must throw at runtime
+                return b == 0 ? null : integerLiteral(a / b);
+            case "%":
+                return b == 0 ? null : integerLiteral(a % b);
+            case "==":
+                return booleanLiteral(a == b);
+            case "!=":
+                return booleanLiteral(a != b);
+            case ">":
+                return booleanLiteral(a > b);
+            case ">=":
+                return booleanLiteral(a >= b);
+            case "<":
+                return booleanLiteral(a < b);
+            case "<=":
+                return booleanLiteral(a <= b);
+            default:
+                return null;
+        }
+    }
+
+    private static Expression foldBooleans(String name, boolean a, boolean b) {
+        switch (name) {
+            case "and":
+                return booleanLiteral(a & b);
+            case "or":
+                return booleanLiteral(a | b);
+            case "xor":
+                return booleanLiteral(a ^ b);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Evaluation of literal or variable never fails, so it may be dropped
+     */
+    private static boolean isTrivial(Expression expression) {
+        return expression instanceof Expressions.Literal || expression instanceof Expressions.Variable;
+    }
+
+    private static boolean isInt(Expression expression, int value) {
+        return expression instanceof Expressions.Int && ((Expressions.Int) expression).number == value;
+    }
+
+    private static boolean isBool(Expression expression, boolean value) {
+        return expression instanceof Expressions.Bool && ((Expressions.Bool) expression).value == value;
+    }
+
+    private static Expressions.Int integerLiteral(int value) {
+        Expressions.Int literal = new Expressions.Int(value);
+        literal.setType(integer());
+        return literal;
+    }
+
+    private static Expressions.Bool booleanLiteral(boolean value) {
+        Expressions.Bool literal = new Expressions.Bool(value);
+        literal.setType(bool());
+        return literal;
+    }
+}
@@ -0,0 +1,158 @@
+package com.ride.android.optimizations;
+
+import com.ride.android.ast.Expression;
+import com.ride.android.ast.Expressions;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Removal of unused bindings
+ * <p>
+ * Let, whose variable is not used by the body, is replaced by the body, if its value is pure:
+ * evaluation of literal, variable, lambda and of builtin, that can not fail, on pure args, always ends and has no effect.
+ * Letrec, whose variable is used only by its own lambda, is dropped too.
+ * Other unused values are kept, they may fail or never end, as they do without the pass.
+ * <p>
+ * Branches of conditions with literal condition are dropped by {@link ConstantFolder}, so pass is run after it.
+ * Unused top-level definitions are still generated, but module leaves them out of dex,
+ * if they are not reachable from main, see {@code com.ride.android.codegen.Module#compile()}.
+ * <p>
+ * Builtin may be redefined by top-level definition, so one eliminator must see all top-level expressions, in order.
+ * <p>
+ * Pass must be run after type checking, on resolved tree.
+ */
+public final class DeadCodeEliminator {
+    // ids of top-level definitions, seen so far
+    private final BitSet definitions = new BitSet();
+    private int removedBindings = 0;
+
+    /**
+     * Count of let and letrec bindings, that were removed so far
+     */
+    public int getRemovedBindings() {
+        return removedBindings;
+    }
+
+    /**
+     * Returns expression without unused bindings, it is the same instance, if nothing was removed
+     * Nodes of the input, that are not changed, are shared with the output, variables of the body
+     * of removed binding are rebound in place
+     */
+    public Expression eliminate(Expression expression) {
+        if (expression instanceof Expressions.Application) {
+            Expressions.Application application = (Expressions.Application) expression;
+            Expression function = eliminate(application.function);
+            boolean changed = function != application.function;
+            List<Expression> args = new ArrayList<>(application.getArgs().size());
+            for (Expression arg : application.getArgs()) {
+                Expression eliminated = eliminate(arg);
+                changed |= eliminated != arg;
+                args.add(eliminated);
+            }
+            if (!changed) {
+                return application;
+            }
+            return Trees.typed(new Expressions.Application(function, args), application);
+        } else if (expression instanceof Expressions.IfExpr) {
+            Expressions.IfExpr ifExpr = (Expressions.IfExpr) expression;
+            Expression condition = eliminate(ifExpr.condition);
+            Expression ifBranch = eliminate(ifExpr.ifBranch);
+            Expression elseBranch = eliminate(ifExpr.elseBranch);
+            if (condition == ifExpr.condition && ifBranch == ifExpr.ifBranch && elseBranch == ifExpr.elseBranch) {
+                return ifExpr;
+            }
+            return Trees.typed(new Expressions.IfExpr(condition, ifBranch, elseBranch), ifExpr);
+        } else if (expression instanceof Expressions.Definition) {
+            Expressions.Definition definition = (Expressions.Definition) expression;
+            definitions.set(definition.id);
+            Expression body = eliminate(definition.body);
+            if (body == definition.body) {
+                return definition;
+            }
+            return Trees.typed(new Expressions.Definition(definition.name, definition.getArgs(), body), definition);
+        } else if (expression instanceof Expressions.Lambda) {
+            Expressions.Lambda lambda = (Expressions.Lambda) expression;
+            Expression body = eliminate(lambda.body);
+            if (body == lambda.body) {
+                return lambda;
+            }
+            return Trees.typed(new Expressions.Lambda(lambda.args, body), lambda);
+        } else if (expression instanceof Expressions.Let) {
+            Expressions.Let let = (Expressions.Let) expression;
+            Expression varExpr = eliminate(let.varExpr);
+            Expression body = eliminate(let.body);
+            if (!Trees.usesSlot(body, 0) && isPure(varExpr)) {
+                Trees.shift(body, 0, -1);
+                removedBindings++;
+                return body;
+            }
+            if (varExpr == let.varExpr && body == let.body) {
+                return let;
+            }
+            return Trees.typed(new Expressions.Let(let.var, varExpr, body), let);
+        } else if (expression instanceof Expressions.LetRec) {
+            Expressions.LetRec letRec = (Expressions.LetRec) expression;
+            Expression varExpr = eliminate(letRec.varExpr);
+            Expression body = eliminate(letRec.body);
+            if (!Trees.usesSlot(body, 0) && isPure(varExpr)) {
+                Trees.shift(body, 0, -1);
+                removedBindings++;
+                return body;
+            }
+            if (varExpr == letRec.varExpr && body == letRec.body) {
+                return letRec;
+            }
+            return Trees.typed(new Expressions.LetRec(letRec.var, varExpr, body), letRec);
+        }
+        return expression;
+    }
+
+    private boolean isPure(Expression expression) {
+        if (expression instanceof Expressions.Literal || expression instanceof Expressions.Variable
+                || expression instanceof Expressions.Lambda) {
+            return true;
+        }
+        if (expression instanceof Expressions.Application) {
+            Expressions.Application application = (Expressions.Application) expression;
+            if (!(application.function instanceof Expressions.Variable)) {
+                return false;
+            }
+            Expressions.Variable function = (Expressions.Variable) application.function;
+            if (!function.isGlobal() || definitions.get(function.id) || !isTotalBuiltin(function.name)) {
+                return false;
+            }
+            for (Expression arg : application.getArgs()) {
+                if (!isPure(arg)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Builtins, that never fail, division and remainder throw on zero
+     */
+    private static boolean isTotalBuiltin(String name) {
+        switch (name) {
+            case "+":
+            case "-":
+            case "*":
+            case "==":
+            case "!=":
+            case ">":
+            case ">=":
+            case "<":
+            case "<=":
+            case "and":
+            case "or":
+            case "xor":
+                return true;
+            default:
+                return false;
+        }
+    }
+}
@@ -0,0 +1,368 @@
+package com.ride.android.optimizations;
+
+import com.ride.android.ast.Expression;
+import com.ride.android.ast.Expressions;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Inlining of small functions
+ * <p>
+ * Call of top-level definition or of let-bound lambda, whose body is not bigger than the budget (in nodes),
+ * is replaced by a copy of the body. Args, that are literals or variables, are substituted for params,
+ * other args are bound by lets around the body, so they are evaluated once and before the body, as in the call.
+ * Let-bound lambda, whose calls are all inlined, is dropped.
+ * <p>
+ * Recursive functions (definitions that call themselves, letrec lambdas) are never inlined.
+ * Inlined body is inlined into too, but only to the limited depth, so the code does not blow up.
+ * <p>
+ * Definitions are known in the order they are added (see {@link #define(Expressions.Definition)}),
+ * that is also the order in which code generator binds global names.
+ * Globals of inlined body are bound at the call site, so definition is forgotten, once a global,
+ * that its body uses, is redefined: the copy would call the new one, while the definition calls the old one.
+ * <p>
+ * Pass must be run after type checking, on resolved tree, and before lambda lifting.
+ */
+public final class Inliner {
+    private static final int MAX_DEPTH = 3;
+
+    private final int budget;
+    // top-level definitions, that may be inlined, by id
+    private final Map<Integer, Expressions.Definition> definitions = new HashMap<>();
+    // ids of definitions, that may be inlined, by ids of globals, that their bodies use
+    private final Map<Integer, Set<Integer>> users = new HashMap<>();
+    private int inlinedCalls = 0;
+
+    // binder of every frame, from the outermost one: definition, lambda, let or letrec
+    private final List<Expression> binders = new ArrayList<>();
+    // inlined bodies, that are being inlined into
+    private int depth = 0;
+
+    /**
+     * @param budget max size of inlined body, 0 turns inlining off
+     */
+    public Inliner(int budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Count of call sites, that were inlined so far
+     */
+    public int getInlinedCalls() {
+        return inlinedCalls;
+    }
+
+    /**
+     * Makes the definition known, so its calls in the following expressions may be inlined
+     * It replaces the previous definition with the same name
+     */
+    public void define(Expressions.Definition definition) {
+        redefine(definition.id);
+        if (Trees.size(definition.body) > budget) {
+            return;
+        }
+        Set<Integer> globals = new HashSet<>();
+        collectGlobals(definition.body, globals);
+        if (globals.contains(definition.id)) {
+            return;
+        }
+        // definition is copied, because later passes rebind variables of the original one
+        Expressions.Definition copy = new Expressions.Definition(definition.name, definition.getArgs(),
+                copy(definition.body, null, 0));
+        definitions.put(definition.id, Trees.typed(copy, definition));
+        for (int global : globals) {
+            users.computeIfAbsent(global, id -> new HashSet<>()).add(definition.id);
+        }
+    }
+
+    /**
+     * Forgets definitions, that use the global with the id or define it
+     */
+    private void redefine(int id) {
+        definitions.remove(id);
+        Set<Integer> removed = users.remove(id);
+        if (removed != null) {
+            for (int user : removed) {
+                definitions.remove(user);
+            }
+        }
+    }
+
+    /**
+     * Returns expression with calls inlined
+     * Nodes of the input, that are not changed, are shared with the output
+     */
+    public Expression inline(Expression expression) {
+        if (budget <= 0) {
+            return expression;
+        }
+        if (expression instanceof Expressions.Definition) {
+            // body sees the definition itself, not the one it replaces
+            redefine(((Expressions.Definition) expression).id);
+        }
+        return visit(expression);
+    }
+
+    private Expression visit(Expression expression) {
+        if (expression instanceof Expressions.Application) {
+            return visitApplication((Expressions.Application) expression);
+        } else if (expression instanceof Expressions.IfExpr) {
+            Expressions.IfExpr ifExpr = (Expressions.IfExpr) expression;
+            Expression condition = visit(ifExpr.condition);
+            Expression ifBranch = visit(ifExpr.ifBranch);
+            Expression elseBranch = visit(ifExpr.elseBranch);
+            if (condition == ifExpr.condition && ifBranch == ifExpr.ifBranch && elseBranch == ifExpr.elseBranch) {
+                return ifExpr;
+            }
+            return Trees.typed(new Expressions.IfExpr(condition, ifBranch, elseBranch), ifExpr);
+        } else if (expression instanceof Expressions.Definition) {
+            Expressions.Definition definition = (Expressions.Definition) expression;
+            binders.add(definition);
+            Expression body = visit(definition.body);
+            binders.remove(binders.size() - 1);
+            if (body == definition.body) {
+                return definition;
+            }
+            return Trees.typed(new Expressions.Definition(definition.name, definition.getArgs(), body), definition);
+        } else if (expression instanceof Expressions.Lambda) {
+            Expressions.Lambda lambda = (Expressions.Lambda) expression;
+            binders.add(lambda);
+            Expression body = visit(lambda.body);
+            binders.remove(binders.size() - 1);
+            if (body == lambda.body) {
+                return lambda;
+            }
+            return Trees.typed(new Expressions.Lambda(lambda.args, body), lambda);
+        } else if (expression instanceof Expressions.Let) {
+            return visitLet((Expressions.Let) expression);
+        } else if (expression instanceof Expressions.LetRec) {
+            Expressions.LetRec letRec = (Expressions.LetRec) expression;
+            binders.add(letRec);
+            Expression varExpr = visit(letRec.varExpr);
+            Expression body = visit(letRec.body);
+            binders.remove(binders.size() - 1);
+            if (varExpr == letRec.varExpr && body == letRec.body) {
+                return letRec;
+            }
+            return Trees.typed(new Expressions.LetRec(letRec.var, varExpr, body), letRec);
+        }
+        return expression;
+    }
+
+    private Expression visitLet(Expressions.Let let) {
+        Expression varExpr = visit(let.varExpr);
+        Expressions.Let result = let;
+        if (varExpr != let.varExpr) {
+            // binder is replaced before the body is visited, calls in the body see the new lambda
+            result = Trees.typed(new Expressions.Let(let.var, varExpr, let.body), let);
+        }
+        binders.add(result);
+        Expression body = visit(let.body);
+        binders.remove(binders.size() - 1);
+
+        if (varExpr instanceof Expressions.Lambda && !Trees.usesSlot(body, 0)) {
+            // all calls of the lambda are inlined
+            Trees.shift(body, 0, -1);
+            return body;
+        }
+        if (body == let.body) {
+            return result;
+        }
+        return Trees.typed(new Expressions.Let(let.var, varExpr, body), let);
+    }
+
+    private Expression visitApplication(Expressions.Application application) {
+        Expression function = visit(application.function);
+        boolean changed = function != application.function;
+        List<Expression> args = new ArrayList<>(application.getArgs().size());
+        for (Expression arg : application.getArgs()) {
+            Expression visited = visit(arg);
+            changed |= visited != arg;
+            args.add(visited);
+        }
+
+        if (function instanceof Expressions.Variable && depth < MAX_DEPTH) {
+            Expression inlined = inlineCall((Expressions.Variable) function, args, application);
+            if (inlined != null) {
+                inlinedCalls++;
+                // body is inlined into at the call site
+                depth++;
+                Expression result = visit(inlined);
+                depth--;
+                return result;
+            }
+        }
+        if (!changed) {
+            return application;
+        }
+        return Trees.typed(new Expressions.Application(function, args), application);
+    }
+
+    /**
+     * Returns copy of the callee body with args, or null, if the callee is not known or it is too big
+     */
+    private Expression inlineCall(Expressions.Variable function, List<Expression> args,
+                                  Expressions.Application application) {
+        Expression body;
+        List<String> params;
+        // frame of callee params, -1 for definitions, they see only globals
+        int paramFrame;
+        if (function.isGlobal()) {
+            Expressions.Definition definition = definitions.get(function.id);
+            if (definition == null) {
+                return null;
+            }
+            body = definition.body;
+            params = definition.getArgs();
+            paramFrame = -1;
+        } else if (function.isResolved() && !function.isCaptured()) {
+            int binderFrame = binders.size() - 1 - function.getDepth();
+            Expression binder = binders.get(binderFrame);
+            if (!(binder instanceof Expressions.Let) || !(((Expressions.Let) binder).varExpr instanceof Expressions.Lambda)) {
+                return null;
+            }
+            Expressions.Lambda lambda = (Expressions.Lambda) ((Expressions.Let) binder).varExpr;
+            if (Trees.size(lambda.body) > budget) {
+                return null;
+            }
+            body = lambda.body;
+            params = lambda.args;
+            // lambda is evaluated just outside of the let frame
+            paramFrame = binderFrame;
+        } else {
+            return null;
+        }
+        if (params.size() != args.size()) {
+            return null;
+        }
+
+        // literals and globals are substituted, local variables are read from their frames,
+        // other args are bound by lets around the body
+        int callFrame = binders.size();
+        Substitution substitution = new Substitution(paramFrame, args.size());
+        List<Integer> bound = new ArrayList<>();
+        for (int i = 0; i < args.size(); i++) {
+            Expression arg = args.get(i);
+            if (arg instanceof Expressions.Literal
+                    || (arg instanceof Expressions.Variable && ((Expressions.Variable) arg).isGlobal())) {
+                substitution.substitutes[i] = arg;
+            } else if (arg instanceof Expressions.Variable) {
+                substitution.argFrames[i] = callFrame - 1 - ((Expressions.Variable) arg).getDepth();
+                substitution.argSlots[i] = ((Expressions.Variable) arg).getSlot();
+            } else {
+                substitution.argFrames[i] = callFrame + bound.size();
+                bound.add(i);
+            }
+        }
+        substitution.frames = callFrame + bound.size();
+
+        Expression result = copy(body, substitution, 0);
+        for (int j = bound.size() - 1; j >= 0; j--) {
+            int param = bound.get(j);
+            Expression arg = args.get(param);
+            // arg is evaluated inside of lets of the previous args
+            Trees.shift(arg, 0, j);
+            result = Trees.typed(new Expressions.Let(params.get(param), arg, result), application);
+        }
+        return result;
+    }
+
+    /**
+     * Where variables of the inlined body go: params are replaced by args, outer variables keep their binders
+     * Frames are absolute, counted from the outermost one
+     */
+    private static final class Substitution {
+        // frame of callee params, frames below it are outside of the callee
+        final int paramFrame;
+        // literal or global, that is substituted for param, or null
+        final Expression[] substitutes;
+        // frame and slot of the value of every param, that is not substituted
+        final int[] argFrames;
+        final int[] argSlots;
+        // frames at the place, where the copy is put
+        int frames;
+
+        Substitution(int paramFrame, int params) {
+            this.paramFrame = paramFrame;
+            this.substitutes = new Expression[params];
+            this.argFrames = new int[params];
+            this.argSlots = new int[params];
+        }
+    }
+
+    /**
+     * Copies body of the callee, inner is count of frames of the body between its root and the expression
+     * Without substitution it is plain deep copy
+     */
+    private static Expression copy(Expression expression, Substitution substitution, int inner) {
+        if (expression instanceof Expressions.Variable) {
+            Expressions.Variable variable = (Expressions.Variable) expression;
+            Expressions.Variable copy = variable.copy();
+            int depth = variable.getDepth();
+            if (variable.isGlobal()) {
+                copy.bindGlobal();
+            } else if (substitution == null || depth < inner) {
+                copy.bindLocal(depth, variable.getSlot());
+            } else if (depth == inner) {
+                int param = variable.getSlot();
+                if (substitution.substitutes[param] != null) {
+                    return copy(substitution.substitutes[param], null, 0);
+                }
+                copy.bindLocal(substitution.frames + inner - 1 - substitution.argFrames[param],
+                        substitution.argSlots[param]);
+            } else {
+                int frame = substitution.paramFrame + inner - depth;
+                copy.bindLocal(substitution.frames + inner - 1 - frame, variable.getSlot());
+            }
+            return copy;
+        } else if (expression instanceof Expressions.Literal) {
+            return expression;
+        } else if (expression instanceof Expressions.Application) {
+            Expressions.Application application = (Expressions.Application) expression;
+            Expression function = copy(application.function, substitution, inner);
+            List<Expression> args = new ArrayList<>(application.getArgs().size());
+            for (Expression arg : application.getArgs()) {
+                args.add(copy(arg, substitution, inner));
+            }
+            return Trees.typed(new Expressions.Application(function, args), application);
+        } else if (expression instanceof Expressions.IfExpr) {
+            Expressions.IfExpr ifExpr = (Expressions.IfExpr) expression;
+            return Trees.typed(new Expressions.IfExpr(
+                    copy(ifExpr.condition, substitution, inner),
+                    copy(ifExpr.ifBranch, substitution, inner),
+                    copy(ifExpr.elseBranch, substitution, inner)), ifExpr);
+        } else if (expression instanceof Expressions.Lambda) {
+            Expressions.Lambda lambda = (Expressions.Lambda) expression;
+            return Trees.typed(new Expressions.Lambda(lambda.args, copy(lambda.body, substitution, inner + 1)), lambda);
+        } else if (expression instanceof Expressions.Let) {
+            Expressions.Let let = (Expressions.Let) expression;
+            return Trees.typed(new Expressions.Let(let.var,
+                    copy(let.varExpr, substitution, inner),
+                    copy(let.body, substitution, inner + 1)), let);
+        } else if (expression instanceof Expressions.LetRec) {
+            Expressions.LetRec letRec = (Expressions.LetRec) expression;
+            return Trees.typed(new Expressions.LetRec(letRec.var,
+                    copy(letRec.varExpr, substitution, inner + 1),
+                    copy(letRec.body, substitution, inner + 1)), letRec);
+        }
+        throw new RuntimeException("Unknown expression to inline: " + expression);
+    }
+
+    private static void collectGlobals(Expression expression, Set<Integer> globals) {
+        if (expression instanceof Expressions.Variable) {
+            Expressions.Variable variable = (Expressions.Variable) expression;
+            if (variable.isGlobal()) {
+                globals.add(variable.id);
+            }
+            return;
+        }
+        for (Expression child : Trees.children(expression)) {
+            collectGlobals(child, globals);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.ride.android.optimizations;
+
+import com.ride.android.ast.Expression;
+import com.ride.android.ast.Expressions;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Traversal of resolved tree, that is shared by passes
+ * <p>
+ * Local variable is bound by (depth, slot): depth is count of frames between the variable and its binder.
+ * Lambda and letrec push a frame around their children, let - around its body only.
+ */
+public final class Trees {
+    private Trees() {
+    }
+
+    /**
+     * Count of nodes
+     */
+    public static int size(Expression expression) {
+        if (expression instanceof Expressions.Application) {
+            Expressions.Application application = (Expressions.Application) expression;
+            int size = 1 + size(application.function);
+            for (Expression arg : application.getArgs()) {
+                size += size(arg);
+            }
+            return size;
+        } else if (expression instanceof Expressions.IfExpr) {
+            Expressions.IfExpr ifExpr = (Expressions.IfExpr) expression;
+            return 1 + size(ifExpr.condition) + size(ifExpr.ifBranch) + size(ifExpr.elseBranch);
+        } else if (expression instanceof Expressions.Lambda) {
+            return 1 + size(((Expressions.Lambda) expression).body);
+        } else if (expression instanceof Expressions.Definition) {
+            return 1 + size(((Expressions.Definition) expression).body);
+        } else if (expression instanceof Expressions.Let) {
+            return 1 + size(((Expressions.Let) expression).varExpr) + size(((Expressions.Let) expression).body);
+        } else if (expression instanceof Expressions.LetRec) {
+            return 1 + size(((Expressions.LetRec) expression).varExpr) + size(((Expressions.LetRec) expression).body);
+        }
+        return 1;
+    }
+
+    /**
+     * Gives the new node the type of the node it replaces
+     */
+    static <E extends Expression> E typed(E expression, Expression original) {
+        expression.setType(original.getType());
+        return expression;
+    }
+
+    /**
+     * Checks whether the expression uses slot of the frame, that is just outside of it
+     */
+    static boolean usesSlot(Expression expression, int inner) {
+        if (expression instanceof Expressions.Variable) {
+            Expressions.Variable variable = (Expressions.Variable) expression;
+            return !variable.isGlobal() && variable.getDepth() == inner;
+        }
+        List<Expression> children = children(expression);
+        for (int i = 0; i < children.size(); i++) {
+            if (usesSlot(children.get(i), inner + frameOf(expression, i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Adds amount to depth of variables, that are bound outside of the expression
+     */
+    static void shift(Expression expression, int inner, int amount) {
+        if (expression instanceof Expressions.Variable) {
+            Expressions.Variable variable = (Expressions.Variable) expression;
+            if (!variable.isGlobal() && variable.getDepth() >= inner) {
+                variable.bindLocal(variable.getDepth() + amount, variable.getSlot());
+            }
+            return;
+        }
+        List<Expression> children = children(expression);
+        for (int i = 0; i < children.size(); i++) {
+            shift(children.get(i), inner + frameOf(expression, i), amount);
+        }
+    }
+
+    static List<Expression> children(Expression expression) {
+        List<Expression> children = new ArrayList<>();
+        if (expression instanceof Expressions.Application) {
+            children.add(((Expressions.Application) expression).function);
+            children.addAll(((Expressions.Application) expression).getArgs());
+        } else if (expression instanceof Expressions.IfExpr) {
+            Expressions.IfExpr ifExpr = (Expressions.IfExpr) expression;
+            children.add(ifExpr.condition);
+            children.add(ifExpr.ifBranch);
+            children.add(ifExpr.elseBranch);
+        } else if (expression instanceof Expressions.Lambda) {
+            children.add(((Expressions.Lambda) expression).body);
+        } else if (expression instanceof Expressions.Let) {
+            children.add(((Expressions.Let) expression).varExpr);
+            children.add(((Expressions.Let) expression).body);
+        } else if (expression instanceof Expressions.LetRec) {
+            children.add(((Expressions.LetRec) expression).varExpr);
+            children.add(((Expressions.LetRec) expression).body);
+        }
+        return children;
+    }
+
+    /**
+     * Count of frames, that the expression pushes around its child (see {@link #children(Expression)})
+     */
+    static int frameOf(Expression expression, int child) {
+        if (expression instanceof Expressions.Lambda || expression instanceof Expressions.LetRec) {
+            return 1;
+        } else if (expression instanceof Expressions.Let) {
+            return child == 1 ? 1 : 0;
+        }
+        return 0;
+    }
+
+}
@@ -3,73 +3,67 @@
  */
 package com.ride.android.parser;
 
+import java.util.ArrayList;
 import java.util.List;
 
 public class Parser {
 
-    static class ParseResult {
-        final SExpressions.ListSExpr node;
-        final int offset;
-
-        ParseResult(SExpressions.ListSExpr expr, int offset) {
-            this.node = expr;
-            this.offset = offset;
-        }
-    }
-
     /**
      * Main method
-     * Input is list of raw tokens
+     * Input is buffer of raw tokens
      * Output is list of nested s-expressions
+     * <p>
+     * Parsing is iterative: lists that are not closed yet are kept in explicit stack,
+     * so nesting depth is not limited by java stack
      */
-    public static List<SExpressions.SExpression> parse(List<Tokenizer.Token> tokens) {
-        tokens.add(0, Tokenizer.Token.makeToken(Tokenizer.TokenType.PAREN_OPEN, "("));
-        tokens.add(Tokenizer.Token.makeToken(Tokenizer.TokenType.PAREN_CLOSE, ")"));
-        ParseResult parseResult = parse(tokens, 0, 0);
-        if (parseResult.offset != tokens.size()) {
-            throw new RuntimeException("Invalid syntax");
+    public static List<SExpressions.SExpression> parse(TokenBuffer tokens) {
+        final ArrayList<SExpressions.ListSExpr> openLists = new ArrayList<>();
+        final SExpressions.ListSExpr root = new SExpressions.ListSExpr();
+        SExpressions.ListSExpr current = root;
+        for (int i = 0; i < tokens.size(); i++) {
+            switch (tokens.kind(i)) {
+                case TokenBuffer.PAREN_OPEN: {
+                    SExpressions.ListSExpr child = new SExpressions.ListSExpr();
+                    current.add(child);
+                    openLists.add(current);
+                    current = child;
+                    break;
+                }
+                case TokenBuffer.PAREN_CLOSE: {
+                    if (openLists.isEmpty()) {
+                        throw new RuntimeException("Invalid syntax: unexpected closing parenthesis");
+                    }
+                    current = openLists.remove(openLists.size() - 1);
+                    break;
+                }
+                default: {
+                    current.add(parseAtom(tokens, i));
+                }
+            }
         }
-        List<SExpressions.SExpression> nodes = ((SExpressions.ListSExpr) parseResult.node.get(0)).getAll();
-        System.out.println("Parsed node: " + nodes.toString());
-        return nodes;
+        if (!openLists.isEmpty()) {
+            throw new RuntimeException("Invalid syntax: " + openLists.size() + " unclosed parenthesis");
+        }
+        return root.getAll();
     }
 
-    private static ParseResult parse(List<Tokenizer.Token> tokens, int offset, int depth) {
-        SExpressions.ListSExpr list = new SExpressions.ListSExpr();
-        int i = offset;
-        while (i < tokens.size() && tokens.get(i).getType() != Tokenizer.TokenType.PAREN_CLOSE) {
-            Tokenizer.Token<?> t = tokens.get(i);
-            if (t.getType() == Tokenizer.TokenType.PAREN_OPEN) {
-                ParseResult childResult = parse(tokens, i + 1, depth + 1);
-                i = childResult.offset;
-                list.add(childResult.node);
-            } else if (t.getType() == Tokenizer.TokenType.NUMBER) {
-                Tokenizer.Token<Integer> numberToken = t.as(Tokenizer.TokenType.NUMBER);
-                SExpressions.Integer childNode = new SExpressions.Integer(numberToken.getValue());
-                list.add(childNode);
-            } else if (t.getType() == Tokenizer.TokenType.BOOLEAN) {
-                Tokenizer.Token<Boolean> booleanToken = t.as(Tokenizer.TokenType.BOOLEAN);
-                SExpressions.Boolean childNode = new SExpressions.Boolean(booleanToken.getValue());
-                list.add(childNode);
-            } else if (t.getType() == Tokenizer.TokenType.SYMBOL) {
-                Tokenizer.Token<String> symbolToken = t.as(Tokenizer.TokenType.SYMBOL);
-                String symbol = symbolToken.getValue();
-
-                SExpressions.Symbol childNode = new SExpressions.Symbol(symbol);
-                list.add(childNode);
-
-            } else {
-                throw new RuntimeException("Unknown token: " + t.toString());
-            }
-            i++;
+    private static SExpressions.SExpression parseAtom(TokenBuffer tokens, int i) {
+        switch (tokens.kind(i)) {
+            case TokenBuffer.NUMBER:
+                return new SExpressions.Integer(tokens.number(i));
+            case TokenBuffer.BOOLEAN:
+                return new SExpressions.Boolean(tokens.bool(i));
+            case TokenBuffer.SYMBOL:
+                return new SExpressions.Symbol(tokens.symbol(i));
+            default:
+                throw new RuntimeException("Unknown token: " + tokens.toString(i));
         }
-        return new ParseResult(list, i);
     }
 
 
     // for testing purposes
     public static void main(String[] args) {
         final String input = "((+) (is 2))(define (a) (if (== a 2) 2 3))";
-        parse(Tokenizer.tokenize(input));
+        System.out.println("Parsed node: " + parse(Tokenizer.tokenize(input)));
     }
 }
@@ -1,5 +1,7 @@
 package com.ride.android.parser;
 
+import com.ride.android.symbols.Symbols;
+
 import java.util.ArrayList;
 import java.util.List;
 
@@ -24,10 +26,12 @@ public class SExpressions {
     }
 
     public static class Symbol extends SExpression {
+        public final int id;
         public final String name;
 
-        Symbol(String name) {
-            this.name = name;
+        Symbol(int id) {
+            this.id = id;
+            this.name = Symbols.name(id);
         }
     }
 
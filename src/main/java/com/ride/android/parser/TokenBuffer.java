@@ -0,0 +1,130 @@
+package com.ride.android.parser;
+
+import com.ride.android.symbols.Symbols;
+
+import java.util.Arrays;
+
+/**
+ * Tokenized program
+ * <p>
+ * Tokens are not objects: kind of each token is stored in a compact byte array,
+ * and its value - in a parallel int array (numbers, booleans as 0/1, symbols as ids from {@link Symbols}).
+ * So any token is accessed by index in O(1), which is what {@link Parser} relies on.
+ */
+public final class TokenBuffer {
+    public static final byte PAREN_OPEN = 0;
+    public static final byte PAREN_CLOSE = 1;
+    public static final byte NUMBER = 2;
+    public static final byte BOOLEAN = 3;
+    public static final byte SYMBOL = 4;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private byte[] kinds;
+    private int[] values;
+    private int size = 0;
+
+    public TokenBuffer() {
+        this(INITIAL_CAPACITY);
+    }
+
+    public TokenBuffer(int capacity) {
+        capacity = Math.max(capacity, 1);
+        kinds = new byte[capacity];
+        values = new int[capacity];
+    }
+
+    void addParenOpen() {
+        add(PAREN_OPEN, 0);
+    }
+
+    void addParenClose() {
+        add(PAREN_CLOSE, 0);
+    }
+
+    void addNumber(int value) {
+        add(NUMBER, value);
+    }
+
+    void addBoolean(boolean value) {
+        add(BOOLEAN, value ? 1 : 0);
+    }
+
+    void addSymbol(int id) {
+        add(SYMBOL, id);
+    }
+
+    private void add(byte kind, int value) {
+        if (size == kinds.length) {
+            grow();
+        }
+        kinds[size] = kind;
+        values[size] = value;
+        size++;
+    }
+
+    private void grow() {
+        int capacity = kinds.length * 2;
+        kinds = Arrays.copyOf(kinds, capacity);
+        values = Arrays.copyOf(values, capacity);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public byte kind(int i) {
+        return kinds[i];
+    }
+
+    public int number(int i) {
+        return values[i];
+    }
+
+    public boolean bool(int i) {
+        return values[i] != 0;
+    }
+
+    /**
+     * Returns symbol id, see {@link Symbols}
+     */
+    public int symbol(int i) {
+        return values[i];
+    }
+
+    /**
+     * Drops all tokens, but keeps allocated arrays for reuse
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    public String toString(int i) {
+        switch (kinds[i]) {
+            case PAREN_OPEN:
+                return "(";
+            case PAREN_CLOSE:
+                return ")";
+            case NUMBER:
+                return String.valueOf(values[i]);
+            case BOOLEAN:
+                return values[i] != 0 ? "#t" : "#f";
+            case SYMBOL:
+                return Symbols.name(values[i]);
+            default:
+                throw new IllegalStateException("Unknown token kind: " + kinds[i]);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder result = new StringBuilder("Tokens[");
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                result.append(' ');
+            }
+            result.append(toString(i));
+        }
+        return result.append(']').toString();
+    }
+}
@@ -1,128 +1,201 @@
 package com.ride.android.parser;
 
-import java.util.LinkedList;
-import java.util.List;
-import java.util.regex.Pattern;
-
+import com.ride.android.symbols.Symbols;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+
+/**
+ * Scans program text into tokens
+ * <p>
+ * Input is pulled from the reader through a fixed size buffer and scanned once, char by char:
+ * numbers and booleans are decoded in place, symbols are interned right from the buffer
+ * (so only the first occurrence of each symbol allocates a string).
+ * Tokens are produced form by form (see {@link #readForm(TokenBuffer)}),
+ * so the whole program never has to be in memory.
+ */
 public class Tokenizer {
+    private static final int BUFFER_SIZE = 8192;
+
+    private final Reader reader;
+    private final char[] buffer = new char[BUFFER_SIZE];
+    private int position = 0;
+    private int limit = 0;
+
+    // atom that does not fit into the rest of the buffer is collected here
+    private char[] atom = new char[64];
+
+    public Tokenizer(final Reader reader) {
+        this.reader = reader;
+    }
 
     /**
      * Main method
      * Input is program string
      * Output is tokenized program
      */
-    public static List<Token> tokenize(final String input) {
-        // System.out.println("Initial input: " + input);
-        // insert spaces & split
-        final String[] rawTokens = input.replace("(", " ( ")
-                .replace(")", " ) ")
-                .split(" ");
-        // System.out.println("Converted input: " + Arrays.toString(rawTokens));
-
-
-        // parse into tokens
-        final List<Token> tokens = new LinkedList<>();
-        for (final String rawToken : rawTokens) {
-            if (rawToken == null || rawToken.isEmpty()) {
-                continue;
-            }
-            if (isNumber(rawToken)) {
-                tokens.add(Token.makeToken(TokenType.NUMBER, Integer.parseInt(rawToken)));
-            } else if (isParenOpen(rawToken)) {
-                tokens.add(Token.makeToken(TokenType.PAREN_OPEN, rawToken));
-            } else if (isParenClose(rawToken)) {
-                tokens.add(Token.makeToken(TokenType.PAREN_CLOSE, rawToken));
-            } else if (isBoolean(rawToken)) {
-                tokens.add(Token.makeToken(TokenType.BOOLEAN, parseBoolean(rawToken)));
-            } else {
-                tokens.add(Token.makeToken(TokenType.SYMBOL, rawToken));
+    public static TokenBuffer tokenize(final String input) {
+        final TokenBuffer tokens = new TokenBuffer(input.length() / 4);
+        final Tokenizer tokenizer = new Tokenizer(new StringReader(input));
+        try {
+            while (tokenizer.readForm(tokens)) {
+                // read all forms into one buffer
             }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
-
-        // System.out.println("Tokens: " + tokens);
-
         return tokens;
     }
 
-    static boolean isNumber(final String rawToken) {
-        return Pattern.compile("\\d+").matcher(rawToken).matches();
+    /**
+     * Appends tokens of the next top-level form (an atom or a whole list) to the buffer
+     * Returns false if input has no more forms
+     * <p>
+     * Unbalanced parens are not reported here, they are left to the {@link Parser}
+     */
+    public boolean readForm(final TokenBuffer tokens) throws IOException {
+        int depth = 0;
+        while (true) {
+            if (position == limit && !fill()) {
+                return depth > 0;
+            }
+            final char c = buffer[position];
+            if (isWhitespace(c)) {
+                position++;
+            } else if (c == '(') {
+                tokens.addParenOpen();
+                position++;
+                depth++;
+            } else if (c == ')') {
+                tokens.addParenClose();
+                position++;
+                depth--;
+                if (depth <= 0) {
+                    return true;
+                }
+            } else {
+                scanAtom(tokens);
+                if (depth == 0) {
+                    return true;
+                }
+            }
+        }
     }
 
-    static boolean isBoolean(final String rawToken) {
-        return Pattern.compile("#[ft]").matcher(rawToken).matches();
+    private boolean fill() throws IOException {
+        final int read = reader.read(buffer, 0, buffer.length);
+        if (read <= 0) {
+            return false;
+        }
+        position = 0;
+        limit = read;
+        return true;
     }
 
-    static boolean isParenOpen(final String rawToken) {
-        return rawToken.equals("(");
-    }
+    private void scanAtom(final TokenBuffer tokens) throws IOException {
+        final int start = position;
+        while (position < limit && !isDelimiter(buffer[position])) {
+            position++;
+        }
+        if (position < limit) {
+            decodeAtom(tokens, buffer, start, position);
+            return;
+        }
 
-    static boolean isParenClose(final String rawToken) {
-        return rawToken.equals(")");
+        // atom continues after the buffered chars, collect it before buffer is refilled
+        int length = position - start;
+        ensureAtomCapacity(length);
+        System.arraycopy(buffer, start, atom, 0, length);
+        while (fill()) {
+            final int chunkStart = position;
+            while (position < limit && !isDelimiter(buffer[position])) {
+                position++;
+            }
+            final int chunkLength = position - chunkStart;
+            ensureAtomCapacity(length + chunkLength);
+            System.arraycopy(buffer, chunkStart, atom, length, chunkLength);
+            length += chunkLength;
+            if (position < limit) {
+                break;
+            }
+        }
+        decodeAtom(tokens, atom, 0, length);
     }
 
-    static boolean parseBoolean(final String rawToken) {
-        switch (rawToken) {
-            case "#t":
-                return true;
-            case "#f":
-                return false;
-            default:
-                throw new IllegalArgumentException("boolean value should be either '#t' or '#f'");
+    private void ensureAtomCapacity(final int capacity) {
+        if (atom.length < capacity) {
+            atom = Arrays.copyOf(atom, Math.max(capacity, atom.length * 2));
         }
     }
 
-    static class TokenType<TVALUE> {
-        private final String title;
-
-        public TokenType(final String title) {
-            this.title = title;
+    /**
+     * Decodes atom occupying [start, end) of the chars
+     */
+    private static void decodeAtom(final TokenBuffer tokens, final char[] chars, final int start, final int end) {
+        if (isNumber(chars, start, end)) {
+            tokens.addNumber(parseNumber(chars, start, end));
+            return;
         }
-
-        @Override
-        public String toString() {
-            return "#" + title;
+        if (end - start == 2 && chars[start] == '#') {
+            final char value = chars[start + 1];
+            if (value == 't' || value == 'f') {
+                tokens.addBoolean(value == 't');
+                return;
+            }
         }
-
-        public static final TokenType<String> PAREN_OPEN = new TokenType<String>("PAREN_OPEN") {
-        };
-        public static final TokenType<String> PAREN_CLOSE = new TokenType<String>("PAREN_CLOSE") {
-        };
-        public static final TokenType<Integer> NUMBER = new TokenType<Integer>("NUMBER") {
-        };
-        public static final TokenType<String> SYMBOL = new TokenType<String>("SYMBOL") {
-        };
-        public static final TokenType<Boolean> BOOLEAN = new TokenType<Boolean>("BOOLEAN") {
-        };
+        tokens.addSymbol(Symbols.intern(chars, start, end - start));
     }
 
-    public static abstract class Token<R> {
-        abstract TokenType<R> getType();
-
-        abstract R getValue();
-
-        public <SR> Token<SR> as(TokenType<SR> type) {
-            return (Token<SR>) this;
+    /**
+     * Number is an optional minus followed by at least one digit
+     */
+    static boolean isNumber(final char[] chars, final int start, final int end) {
+        int i = start;
+        if (chars[i] == '-') {
+            i++;
         }
+        if (i == end) {
+            return false;
+        }
+        for (; i < end; i++) {
+            if (!isDigit(chars[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
 
-        @Override
-        public String toString() {
-            TokenType<R> type = getType();
-            R value = getValue();
-            return "Token{" + type + ", " + value + " }";
+    /**
+     * Accumulates number in negative range (same as {@link Integer#parseInt(String)}),
+     * so Integer.MIN_VALUE is representable
+     */
+    static int parseNumber(final char[] chars, final int start, final int end) {
+        final boolean negative = chars[start] == '-';
+        final int limit = negative ? Integer.MIN_VALUE : -Integer.MAX_VALUE;
+        final int multiplyLimit = limit / 10;
+        int result = 0;
+        for (int i = negative ? start + 1 : start; i < end; i++) {
+            final int digit = chars[i] - '0';
+            if (result < multiplyLimit || result * 10 < limit + digit) {
+                throw new RuntimeException("Number is out of range: " + new String(chars, start, end - start));
+            }
+            result = result * 10 - digit;
         }
+        return negative ? result : -result;
+    }
 
-        static <SR> Token<SR> makeToken(final TokenType<SR> type, final SR value) {
-            return new Token<SR>() {
-                @Override
-                public TokenType<SR> getType() {
-                    return type;
-                }
+    static boolean isDigit(final char c) {
+        return c >= '0' && c <= '9';
+    }
 
-                @Override
-                public SR getValue() {
-                    return value;
-                }
-            };
-        }
+    static boolean isWhitespace(final char c) {
+        return c == ' ' || c == '\n' || c == '\t' || c == '\r' || c == '\f';
+    }
+
+    static boolean isDelimiter(final char c) {
+        return c == '(' || c == ')' || isWhitespace(c);
     }
 }
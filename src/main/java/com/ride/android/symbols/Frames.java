@@ -0,0 +1,89 @@
+package com.ride.android.symbols;
+
+import java.util.Arrays;
+
+/**
+ * Values of variables, laid out the way the resolver numbers them
+ * <p>
+ * Every binder (function args, let variable) pushes a frame with one slot per bound symbol,
+ * so a resolved local is read by (depth, slot), where depth is the count of frames above its own.
+ * Globals (top-level definitions and builtins) live in a separate array, indexed by symbol id.
+ * <p>
+ * Frames also remember ids of their symbols, so variables that were never resolved
+ * can still be looked up by id (see {@link #lookup(int)}), which is slow, but it is only used for hand-built trees.
+ */
+public final class Frames<T> {
+    private Object[] globals = new Object[64];
+
+    private Object[][] values = new Object[16][];
+    private int[][] ids = new int[16][];
+    private int size = 0;
+
+    public void pushFrame(final int[] frameIds) {
+        if (size == values.length) {
+            values = Arrays.copyOf(values, size * 2);
+            ids = Arrays.copyOf(ids, size * 2);
+        }
+        values[size] = new Object[frameIds.length];
+        ids[size] = frameIds;
+        size++;
+    }
+
+    public void popFrame() {
+        if (size == 0) {
+            throw new IllegalStateException("No frame to pop");
+        }
+        size--;
+        values[size] = null;
+        ids[size] = null;
+    }
+
+    /**
+     * Drops all frames, but not globals
+     */
+    public void clearFrames() {
+        while (size > 0) {
+            popFrame();
+        }
+    }
+
+    /**
+     * Sets value of the slot in the innermost frame
+     */
+    public void setLocal(final int slot, final T value) {
+        values[size - 1][slot] = value;
+    }
+
+    @SuppressWarnings("unchecked")
+    public T local(final int depth, final int slot) {
+        return (T) values[size - 1 - depth][slot];
+    }
+
+    public void defineGlobal(final int id, final T value) {
+        if (id >= globals.length) {
+            globals = Arrays.copyOf(globals, Math.max(id + 1, globals.length * 2));
+        }
+        globals[id] = value;
+    }
+
+    @SuppressWarnings("unchecked")
+    public T global(final int id) {
+        return id < globals.length ? (T) globals[id] : null;
+    }
+
+    /**
+     * Looks up unresolved symbol: walks frames from the innermost one, then checks globals
+     */
+    @SuppressWarnings("unchecked")
+    public T lookup(final int id) {
+        for (int frame = size - 1; frame >= 0; frame--) {
+            final int[] frameIds = ids[frame];
+            for (int slot = frameIds.length - 1; slot >= 0; slot--) {
+                if (frameIds[slot] == id) {
+                    return (T) values[frame][slot];
+                }
+            }
+        }
+        return global(id);
+    }
+}
@@ -0,0 +1,76 @@
+package com.ride.android.symbols;
+
+import java.util.Arrays;
+
+/**
+ * Nested scopes, that map symbol ids (see {@link Symbols}) to values
+ * <p>
+ * Uses shallow binding: the visible value of every symbol is kept in an array indexed by symbol id,
+ * and each scope records the values it shadows, to restore them when the scope is popped.
+ * So lookup is a single array access, no matter how many scopes are pushed.
+ */
+public final class ScopedTable<T> {
+    private Object[] values = new Object[64];
+    // depth of the scope, in which visible value was defined
+    private int[] depths = new int[64];
+
+    // shadowed values, to be restored on pop
+    private int[] undoIds = new int[16];
+    private Object[] undoValues = new Object[16];
+    private int[] undoDepths = new int[16];
+    private int undoSize = 0;
+
+    // start of each pushed scope in the undo log
+    private int[] scopeStarts = new int[16];
+    private int depth = 0;
+
+    public void push() {
+        if (depth == scopeStarts.length) {
+            scopeStarts = Arrays.copyOf(scopeStarts, depth * 2);
+        }
+        scopeStarts[depth++] = undoSize;
+    }
+
+    public void pop() {
+        if (depth == 0) {
+            throw new IllegalStateException("Root scope cannot be popped");
+        }
+        final int start = scopeStarts[--depth];
+        while (undoSize > start) {
+            undoSize--;
+            final int id = undoIds[undoSize];
+            values[id] = undoValues[undoSize];
+            depths[id] = undoDepths[undoSize];
+            undoValues[undoSize] = null;
+        }
+    }
+
+    /**
+     * Defines value in the innermost scope, replacing value of the same symbol defined in this scope
+     */
+    public void define(final int id, final T value) {
+        if (id >= values.length) {
+            final int capacity = Math.max(id + 1, values.length * 2);
+            values = Arrays.copyOf(values, capacity);
+            depths = Arrays.copyOf(depths, capacity);
+        }
+        if (depths[id] != depth) {
+            if (undoSize == undoIds.length) {
+                undoIds = Arrays.copyOf(undoIds, undoSize * 2);
+                undoValues = Arrays.copyOf(undoValues, undoSize * 2);
+                undoDepths = Arrays.copyOf(undoDepths, undoSize * 2);
+            }
+            undoIds[undoSize] = id;
+            undoValues[undoSize] = values[id];
+            undoDepths[undoSize] = depths[id];
+            undoSize++;
+            depths[id] = depth;
+        }
+        values[id] = value;
+    }
+
+    @SuppressWarnings("unchecked")
+    public T lookup(final int id) {
+        return id < values.length ? (T) values[id] : null;
+    }
+}
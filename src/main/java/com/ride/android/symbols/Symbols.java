@@ -0,0 +1,105 @@
+package com.ride.android.symbols;
+
+import java.util.Arrays;
+
+/**
+ * Compiler-wide table of identifiers
+ * <p>
+ * Every identifier is interned once, when the tokenizer meets it, and gets a small integer id.
+ * Later phases work with this id instead of the name, so names are not hashed again
+ * and every occurrence of an identifier shares one string.
+ * <p>
+ * Table is open addressing hash table of ids, so interning chars of an already known identifier allocates nothing.
+ */
+public final class Symbols {
+    private static volatile String[] names = new String[256];
+    // (id + 1) of the symbol in each slot, 0 marks empty slot
+    private static int[] slots = new int[512];
+    private static int count = 0;
+
+    private Symbols() {
+    }
+
+    /**
+     * Returns id of identifier occupying [start, start + length) of the chars
+     */
+    public static synchronized int intern(final char[] chars, final int start, final int length) {
+        int hash = 0;
+        for (int i = start; i < start + length; i++) {
+            hash = 31 * hash + chars[i];
+        }
+        final int mask = slots.length - 1;
+        for (int slot = spread(hash) & mask; ; slot = (slot + 1) & mask) {
+            final int entry = slots[slot];
+            if (entry == 0) {
+                return add(new String(chars, start, length), slot);
+            }
+            if (matches(names[entry - 1], chars, start, length)) {
+                return entry - 1;
+            }
+        }
+    }
+
+    public static synchronized int intern(final String name) {
+        final int mask = slots.length - 1;
+        for (int slot = spread(name.hashCode()) & mask; ; slot = (slot + 1) & mask) {
+            final int entry = slots[slot];
+            if (entry == 0) {
+                return add(name, slot);
+            }
+            if (names[entry - 1].equals(name)) {
+                return entry - 1;
+            }
+        }
+    }
+
+    public static String name(final int id) {
+        return names[id];
+    }
+
+    public static synchronized int count() {
+        return count;
+    }
+
+    private static int add(final String name, final int slot) {
+        final int id = count++;
+        if (id == names.length) {
+            names = Arrays.copyOf(names, id * 2);
+        }
+        names[id] = name;
+        slots[slot] = id + 1;
+        if (count * 2 > slots.length) {
+            rehash(slots.length * 2);
+        }
+        return id;
+    }
+
+    private static void rehash(final int capacity) {
+        final int[] newSlots = new int[capacity];
+        final int mask = capacity - 1;
+        for (int id = 0; id < count; id++) {
+            int slot = spread(names[id].hashCode()) & mask;
+            while (newSlots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            newSlots[slot] = id + 1;
+        }
+        slots = newSlots;
+    }
+
+    private static boolean matches(final String name, final char[] chars, final int start, final int length) {
+        if (name.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (name.charAt(i) != chars[start + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int spread(final int hash) {
+        return hash ^ (hash >>> 16);
+    }
+}
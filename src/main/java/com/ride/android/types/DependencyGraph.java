@@ -0,0 +1,162 @@
+package com.ride.android.types;
+
+import com.ride.android.ast.Expression;
+import com.ride.android.ast.Expressions;
+import com.ride.android.ast.Resolver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Dependencies between top-level forms of a program
+ * <p>
+ * Form depends on the definitions it references. Definition is visible in its own body and after it is defined,
+ * so a reference goes to the closest preceding definition of that name (or to a global defined outside the forms).
+ * <p>
+ * Forms are grouped into strongly connected components (Tarjan), and components - into waves:
+ * every component depends only on components of earlier waves, so components of one wave can be checked in parallel.
+ */
+final class DependencyGraph {
+    // for each form: referenced ids, that are defined by other forms, and indices of these forms
+    final int[][] dependencyIds;
+    final int[][] dependencyForms;
+
+    // components in dependency order, each one lists its forms in source order
+    final List<int[]> components = new ArrayList<>();
+    // waves of component indices
+    final List<List<Integer>> waves = new ArrayList<>();
+
+    DependencyGraph(List<Expression> forms) {
+        int size = forms.size();
+        dependencyIds = new int[size][];
+        dependencyForms = new int[size][];
+
+        int[] lastDefinition = new int[64];
+        Arrays.fill(lastDefinition, -1);
+        for (int form = 0; form < size; form++) {
+            int selfId = forms.get(form) instanceof Expressions.Definition
+                    ? ((Expressions.Definition) forms.get(form)).id
+                    : -1;
+            BitSet globals = Resolver.resolveGlobals(forms.get(form));
+            int[] ids = new int[globals.cardinality()];
+            int[] definitions = new int[ids.length];
+            int count = 0;
+            for (int id = globals.nextSetBit(0); id >= 0; id = globals.nextSetBit(id + 1)) {
+                // definition is recursive, its own name is not a dependency
+                if (id != selfId && id < lastDefinition.length && lastDefinition[id] >= 0) {
+                    ids[count] = id;
+                    definitions[count] = lastDefinition[id];
+                    count++;
+                }
+            }
+            dependencyIds[form] = Arrays.copyOf(ids, count);
+            dependencyForms[form] = Arrays.copyOf(definitions, count);
+
+            if (forms.get(form) instanceof Expressions.Definition) {
+                int id = ((Expressions.Definition) forms.get(form)).id;
+                if (id >= lastDefinition.length) {
+                    int oldLength = lastDefinition.length;
+                    lastDefinition = Arrays.copyOf(lastDefinition, Math.max(id + 1, oldLength * 2));
+                    Arrays.fill(lastDefinition, oldLength, lastDefinition.length, -1);
+                }
+                lastDefinition[id] = form;
+            }
+        }
+
+        findComponents(size);
+        splitIntoWaves(size);
+    }
+
+    /**
+     * Iterative Tarjan's algorithm, components are found in dependency order (dependencies first)
+     */
+    private void findComponents(int size) {
+        int[] index = new int[size];
+        int[] lowLink = new int[size];
+        Arrays.fill(index, -1);
+        boolean[] onStack = new boolean[size];
+        int[] stack = new int[size];
+        int stackSize = 0;
+        int nextIndex = 0;
+
+        // explicit dfs stack: form and position in its dependency list
+        int[] callForms = new int[size];
+        int[] callEdges = new int[size];
+
+        for (int root = 0; root < size; root++) {
+            if (index[root] >= 0) {
+                continue;
+            }
+            int depth = 0;
+            callForms[0] = root;
+            callEdges[0] = 0;
+            index[root] = lowLink[root] = nextIndex++;
+            stack[stackSize++] = root;
+            onStack[root] = true;
+
+            while (depth >= 0) {
+                int form = callForms[depth];
+                int[] dependencies = dependencyForms[form];
+                if (callEdges[depth] < dependencies.length) {
+                    int dependency = dependencies[callEdges[depth]++];
+                    if (index[dependency] < 0) {
+                        index[dependency] = lowLink[dependency] = nextIndex++;
+                        stack[stackSize++] = dependency;
+                        onStack[dependency] = true;
+                        depth++;
+                        callForms[depth] = dependency;
+                        callEdges[depth] = 0;
+                    } else if (onStack[dependency]) {
+                        lowLink[form] = Math.min(lowLink[form], index[dependency]);
+                    }
+                    continue;
+                }
+
+                if (lowLink[form] == index[form]) {
+                    int start = stackSize;
+                    do {
+                        start--;
+                        onStack[stack[start]] = false;
+                    } while (stack[start] != form);
+                    int[] component = Arrays.copyOfRange(stack, start, stackSize);
+                    Arrays.sort(component);
+                    components.add(component);
+                    stackSize = start;
+                }
+                depth--;
+                if (depth >= 0) {
+                    int caller = callForms[depth];
+                    lowLink[caller] = Math.min(lowLink[caller], lowLink[form]);
+                }
+            }
+        }
+    }
+
+    private void splitIntoWaves(int size) {
+        int[] componentOf = new int[size];
+        for (int component = 0; component < components.size(); component++) {
+            for (int form : components.get(component)) {
+                componentOf[form] = component;
+            }
+        }
+        int[] wave = new int[components.size()];
+        for (int component = 0; component < components.size(); component++) {
+            int componentWave = 0;
+            for (int form : components.get(component)) {
+                for (int dependency : dependencyForms[form]) {
+                    int dependencyComponent = componentOf[dependency];
+                    if (dependencyComponent != component) {
+                        componentWave = Math.max(componentWave, wave[dependencyComponent] + 1);
+                    }
+                }
+            }
+            wave[component] = componentWave;
+            while (waves.size() <= componentWave) {
+                waves.add(new ArrayList<>());
+            }
+            waves.get(componentWave).add(component);
+        }
+    }
+}
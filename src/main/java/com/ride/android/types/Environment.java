@@ -1,66 +1,142 @@
 package com.ride.android.types;
 
+import com.ride.android.symbols.Frames;
+import com.ride.android.symbols.Symbols;
+
 import java.util.*;
 
 public final class Environment {
 
-    private final LinkedList<Map<String, Types.TScheme>> env = new LinkedList<>();
-    private final Map<Types.Type, Types.Type> constraints = new HashMap<>();
+    private final Frames<Types.TScheme> env = new Frames<>();
+    // globals that are not defined here are looked up in parent, it is never modified through this environment
+    private final Environment parent;
+    private final BitSet definedGlobals = new BitSet();
 
     private int i = 0;
+    // let nesting depth, see generalize
+    private int level = 0;
 
     public Environment() {
-        push();
+        this(null);
     }
 
-    public interface EnvironmentHandle<T> {
-        T handle(Environment environment);
+    public Environment(Environment parent) {
+        this.parent = parent;
     }
 
-    public <T> T scoped(EnvironmentHandle<T> handler) {
-        push();
-        T result = handler.handle(this);
-        pop();
-        return result;
+    /**
+     * Drops all variables defined in this environment (but not in parent), so it can be reused for the next top-level form
+     * Type variables are named from scratch, so inference result does not depend on forms checked before
+     */
+    void reset() {
+        env.clearFrames();
+        for (int id = definedGlobals.nextSetBit(0); id >= 0; id = definedGlobals.nextSetBit(id + 1)) {
+            env.defineGlobal(id, null);
+        }
+        definedGlobals.clear();
+        i = 0;
+        level = 0;
     }
 
-    public void push() {
-        env.add(new HashMap<>());
+    /**
+     * Opens frame of a binder, see {@link com.ride.android.ast.Resolver}
+     */
+    public void pushFrame(int[] ids) {
+        env.pushFrame(ids);
     }
 
-    public void pop() {
-        env.removeLast();
+    public void popFrame() {
+        env.popFrame();
     }
 
-    public Types.TScheme lookup(String name) {
-        ListIterator<Map<String, Types.TScheme>> envIterator = env.listIterator(env.size());
-        while (envIterator.hasPrevious()) {
-            Map<String, Types.TScheme> localScope = envIterator.previous();
-            if (localScope.containsKey(name)) {
-                return localScope.get(name);
-            }
+    public Types.TScheme lookupLocal(int depth, int slot) {
+        return env.local(depth, slot);
+    }
+
+    public Types.TScheme lookupGlobal(int id) {
+        Types.TScheme scheme = env.global(id);
+        if (scheme == null && parent != null) {
+            return parent.lookupGlobal(id);
         }
-        return null;
+        return scheme;
+    }
+
+    /**
+     * Looks up variable that was not resolved
+     */
+    public Types.TScheme lookup(int id) {
+        Types.TScheme scheme = env.lookup(id);
+        if (scheme == null && parent != null) {
+            return parent.lookupGlobal(id);
+        }
+        return scheme;
+    }
+
+    public Types.TScheme lookup(String name) {
+        return lookup(Symbols.intern(name));
     }
 
+    /**
+     * Returns type bound to the variable (or its representative, if variable is not bound)
+     * Other types are returned as is
+     */
     public Types.Type expose(Types.Type type) {
-        Types.Type res = type;
-        while (constraints.containsKey(res)) {
-            res = constraints.get(res);
+        if (type instanceof Types.TVariable) {
+            return ((Types.TVariable) type).prune();
         }
-        return res;
+        return type;
     }
 
+    /**
+     * Must be called before inferring expression bound by let (or letrec, or define)
+     */
+    public void enterLevel() {
+        level++;
+    }
+
+    public void leaveLevel() {
+        level--;
+    }
+
+    /**
+     * Quantifies variables of the type, that were created inside the let being left
+     * <p>
+     * Variables are created at current level, and unification lowers levels of variables
+     * that get linked to anything from outer levels. So variable above current level is not reachable from environment,
+     * and the environment itself is never scanned.
+     */
     public Types.TScheme generalize(Types.Type type) {
-        Set<Types.Type> ftv = freeVariables();
-        ftv.removeAll(type.freeVariables());
-        return new Types.TScheme<>(type, new ArrayList<>(ftv));
+        ArrayList<Types.Type> quantified = new ArrayList<>();
+        collectGeneralizable(type, quantified);
+        return new Types.TScheme<>(type, quantified);
+    }
+
+    private void collectGeneralizable(Types.Type type, List<Types.Type> quantified) {
+        type = expose(type);
+        if (type instanceof Types.TVariable) {
+            Types.TVariable var = (Types.TVariable) type;
+            if (var.getLevel() > level && !quantified.contains(var)) {
+                quantified.add(var);
+            }
+        } else if (type instanceof Types.TFunction && !((Types.TFunction) type).isGround()) {
+            Types.TFunction function = (Types.TFunction) type;
+            for (Types.Type arg : function.args) {
+                collectGeneralizable(arg, quantified);
+            }
+            collectGeneralizable(function.res, quantified);
+        }
     }
 
     public boolean unify(Types.Type a, Types.Type b) {
+        a = expose(a);
+        b = expose(b);
+        if (a == b) {
+            return true;
+        }
+
         // if both literals
         if (a instanceof Types.TLiteral && b instanceof Types.TLiteral) {
-            return a == b;
+            return false;
         }
 
         // if a == var || b == var -> bind variables
@@ -93,35 +169,84 @@ public final class Environment {
         return true;
     }
 
+    /**
+     * Both var and t are exposed, so var is an unbound representative
+     */
     private boolean bind(Types.TVariable var, Types.Type t) {
-        if (constraints.containsKey(var)) {
-            return unify(constraints.get(var), t);
+        if (t instanceof Types.TVariable) {
+            Types.TVariable.union(var, (Types.TVariable) t);
         } else {
-            constraints.put(var, t);
+            if (occurs(var, t)) {
+                return false;
+            }
+            var.bind(t);
+        }
+        return true;
+    }
+
+    /**
+     * Occurs check, so variable is never bound to a type containing it (that type would be infinite)
+     * Walking the type also makes its variables escape to the level of the variable being bound
+     */
+    private boolean occurs(Types.TVariable var, Types.Type type) {
+        type = expose(type);
+        if (type == var) {
             return true;
         }
+        if (type instanceof Types.TVariable) {
+            ((Types.TVariable) type).lowerLevel(var.getLevel());
+        } else if (type instanceof Types.TFunction && !((Types.TFunction) type).isGround()) {
+            Types.TFunction function = (Types.TFunction) type;
+            for (Types.Type arg : function.args) {
+                if (occurs(var, arg)) {
+                    return true;
+                }
+            }
+            return occurs(var, function.res);
+        }
+        return false;
+    }
+
+    /**
+     * Defines variable in the innermost frame
+     */
+    public void defineLocal(int slot, Types.Type type) {
+        env.setLocal(slot, new Types.TScheme<>(type, new ArrayList<>()));
+    }
+
+    public void defineLocal(int slot, Types.TScheme type) {
+        env.setLocal(slot, type);
+    }
+
+    /**
+     * Defines global variable (top-level definition or builtin)
+     */
+    public void define(int id, Types.Type type) {
+        define(id, new Types.TScheme<>(type, new ArrayList<>()));
+    }
+
+    public void define(int id, Types.TScheme type) {
+        env.defineGlobal(id, type);
+        definedGlobals.set(id);
     }
 
     public void define(String name, Types.Type type) {
-        env.getLast().put(name, new Types.TScheme<>(type, new ArrayList<>()));
+        define(Symbols.intern(name), type);
     }
 
     public void define(String name, Types.TScheme type) {
-        env.getLast().put(name, type);
+        define(Symbols.intern(name), type);
     }
 
 
-    public Types.TVariable newvar() {
-        return new Types.TVariable(String.valueOf((char) ((i++ % 26) + 97)) + Character.forDigit(i / 26, 10));
+    /**
+     * Count of type variables, that were made since the environment was reset
+     */
+    int variableCount() {
+        return i;
     }
 
-    private Set<Types.Type> freeVariables() {
-        Set<Types.Type> ftv = new HashSet<>();
-        for (Map<String, Types.TScheme> scope : env) {
-            for (Types.TScheme type : scope.values()) {
-                ftv.addAll(type.freeVars);
-            }
-        }
-        return ftv;
+    public Types.TVariable newvar() {
+        return new Types.TVariable(i++, level);
     }
 }
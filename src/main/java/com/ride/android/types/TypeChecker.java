@@ -2,16 +2,27 @@ package com.ride.android.types;
 
 import com.ride.android.ast.Ast;
 import com.ride.android.ast.Expression;
+import com.ride.android.ast.Expressions;
 import com.ride.android.parser.Parser;
 import com.ride.android.parser.Tokenizer;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
 
 import static com.ride.android.types.Types.*;
 
 /**
  * Infers types for each expression in AST.
  * After inference, each expression is assigned its type.
+ * <p>
+ * Program is checked in batches of top-level forms (see {@link #inferBatch(List)}).
+ * Independent forms of a batch are checked in parallel, every form in its own environment that is reused by the thread,
+ * and the results are merged in source order, so types are the same for any parallelism.
  */
 public class TypeChecker {
     /**
@@ -20,15 +31,128 @@ public class TypeChecker {
      * Output is Decorated AST
      */
     public static List<Expression> infer(List<Expression> expressions) {
-        Environment env = makeEnvironment();
-        for (Expression expression : expressions) {
-            expression.infer(env);
-        }
-        System.out.println("Decorated expressions: " + expressions);
+        new TypeChecker(1).inferBatch(expressions);
         return expressions;
     }
 
-    private static Environment makeEnvironment() {
+    // builtins and definitions of previous batches, it is modified only between batches
+    private final Environment globals = makeEnvironment();
+    private final ForkJoinPool pool;
+    private final ThreadLocal<Environment> formEnvironment = ThreadLocal.withInitial(() -> new Environment(globals));
+    private final LongAdder typeVariables = new LongAdder();
+
+    /**
+     * Makes checker, that uses up to parallelism threads (1 means checking in the calling thread)
+     */
+    public TypeChecker(int parallelism) {
+        this.pool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+    }
+
+    /**
+     * Infers types for the batch of consecutive top-level forms
+     * Definitions of the batch are visible to the next batches
+     */
+    public List<Expression> inferBatch(List<Expression> forms) {
+        DependencyGraph graph = new DependencyGraph(forms);
+        Types.TScheme[] schemes = new Types.TScheme[forms.size()];
+        for (List<Integer> wave : graph.waves) {
+            List<Callable<Void>> tasks = new ArrayList<>(wave.size());
+            for (int component : wave) {
+                int[] componentForms = graph.components.get(component);
+                tasks.add(() -> {
+                    inferComponent(forms, componentForms, graph, schemes);
+                    return null;
+                });
+            }
+            run(tasks);
+        }
+
+        // merge
+        for (int form = 0; form < forms.size(); form++) {
+            if (forms.get(form) instanceof Expressions.Definition) {
+                globals.define(((Expressions.Definition) forms.get(form)).id, schemes[form]);
+            }
+        }
+        return forms;
+    }
+
+    /**
+     * Count of type variables, that were made for all batches so far
+     */
+    public long getTypeVariables() {
+        return typeVariables.sum();
+    }
+
+    /**
+     * Stops worker threads
+     */
+    public void shutdown() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    private void run(List<Callable<Void>> tasks) {
+        if (pool == null || tasks.size() == 1) {
+            for (Callable<Void> task : tasks) {
+                call(task);
+            }
+            return;
+        }
+        for (Future<Void> result : pool.invokeAll(tasks)) {
+            try {
+                result.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new RuntimeException(e.getCause());
+            }
+        }
+    }
+
+    private static void call(Callable<Void> task) {
+        try {
+            task.call();
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void inferComponent(List<Expression> forms, int[] componentForms, DependencyGraph graph, Types.TScheme[] schemes) {
+        Environment environment = formEnvironment.get();
+        try {
+            for (int form : componentForms) {
+                // definitions of this batch, other definitions are found in globals
+                int[] ids = graph.dependencyIds[form];
+                for (int i = 0; i < ids.length; i++) {
+                    Types.TScheme scheme = schemes[graph.dependencyForms[form][i]];
+                    if (scheme != null) {
+                        environment.define(ids[i], scheme);
+                    }
+                }
+                Expression expression = forms.get(form);
+                expression.infer(environment);
+                expression.exposeTypes(environment);
+                if (expression instanceof Expressions.Definition) {
+                    schemes[form] = environment.lookupGlobal(((Expressions.Definition) expression).id);
+                }
+            }
+        } finally {
+            typeVariables.add(environment.variableCount());
+            environment.reset();
+        }
+    }
+
+    /**
+     * Makes environment with builtins
+     */
+    public static Environment makeEnvironment() {
         Environment environment = new Environment();
         environment.define("+", func(args(integer(), integer()), integer()));
         environment.define("-", func(args(integer(), integer()), integer()));
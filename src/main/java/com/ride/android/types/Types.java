@@ -1,6 +1,7 @@
 package com.ride.android.types;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class Types {
 
@@ -30,16 +31,106 @@ public class Types {
         public abstract Type genericCopy(Environment env, Map<Type, Type> mapping);
     }
 
+    /**
+     * Type variable is a node of union-find structure
+     * <p>
+     * Unified variables are linked into one tree (union by rank), root of the tree is the representative
+     * and holds the type all these variables are bound to, if any.
+     * Paths to the root are compressed on every {@link #find()}, so chains of unified variables stay short.
+     * Variables are compared by identity.
+     * <p>
+     * Representative also keeps the level of the outermost let, that the variable escapes to
+     * (see {@link Environment#generalize(Type)}).
+     */
     public static class TVariable extends Type {
-        final String name;
+        private final int id;
+        private String name;
+
+        private TVariable parent = this;
+        private int rank = 0;
+        // bound type of the representative, never a variable
+        private Type instance = null;
+        private int level;
 
         public TVariable(String name) {
+            this.id = -1;
             this.name = name;
+            this.level = 0;
+        }
+
+        TVariable(int id, int level) {
+            this.id = id;
+            this.level = level;
+        }
+
+        /**
+         * Returns representative of this variable, compressing the path to it
+         */
+        TVariable find() {
+            TVariable root = this;
+            while (root.parent != root) {
+                root = root.parent;
+            }
+            // iterative compression, chains may be too long for recursion
+            TVariable current = this;
+            while (current.parent != root) {
+                TVariable next = current.parent;
+                current.parent = root;
+                current = next;
+            }
+            return root;
+        }
+
+        /**
+         * Returns bound type of this variable or its representative if variable is not bound
+         */
+        Type prune() {
+            TVariable root = find();
+            return root.instance != null ? root.instance : root;
+        }
+
+        /**
+         * Links two unbound representatives
+         */
+        static void union(TVariable a, TVariable b) {
+            int level = Math.min(a.level, b.level);
+            if (a.rank < b.rank) {
+                a.parent = b;
+                b.level = level;
+            } else if (a.rank > b.rank) {
+                b.parent = a;
+                a.level = level;
+            } else {
+                b.parent = a;
+                a.rank++;
+                a.level = level;
+            }
+        }
+
+        /**
+         * Binds unbound representative to the type
+         */
+        void bind(Type type) {
+            instance = type;
+        }
+
+        int getLevel() {
+            return level;
+        }
+
+        /**
+         * Only lowers the level, variable cannot get more local than it is
+         */
+        void lowerLevel(int level) {
+            if (level < this.level) {
+                this.level = level;
+            }
         }
 
         @Override
         public Type expose(Environment env) {
-            return env.expose(this);
+            TVariable root = find();
+            return root.instance != null ? root.instance.expose(env) : root;
         }
 
         @Override
@@ -51,52 +142,100 @@ public class Types {
 
         @Override
         public Type genericCopy(Environment env, Map<Type, Type> mapping) {
-            if (mapping.containsKey(this)) {
-                return mapping.get(this);
+            TVariable root = find();
+            if (root.instance != null) {
+                return root.instance.genericCopy(env, mapping);
             }
-            return this;
-        }
-
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (o == null || getClass() != o.getClass()) return false;
-            TVariable tVariable = (TVariable) o;
-            return Objects.equals(name, tVariable.name);
-        }
-
-        @Override
-        public int hashCode() {
-            return Objects.hash(name);
+            if (mapping.containsKey(root)) {
+                return mapping.get(root);
+            }
+            return root;
         }
 
         @Override
         public String toString() {
+            if (name == null) {
+                name = String.valueOf((char) ((id % 26) + 97)) + (id + 1) / 26;
+            }
             return name;
         }
     }
 
+    /**
+     * Type without variables is ground, it is exposed and copied without any work.
+     * Ground function types are hash-consed: every combination of args and result is built once
+     * (see {@link #func(List, Type)}), so equal ground types are the same object and are compared by identity.
+     * <p>
+     * Other types hold type variables of one form, so they are not interned: table would keep them all
+     * for the whole program. They are rebuilt only if some of their parts actually change.
+     */
     public static class TFunction extends Type {
+        // only ground types, so the table is bounded by the types program spells, not by its size
+        private static final ConcurrentHashMap<FunctionKey, TFunction> TABLE = new ConcurrentHashMap<>();
+
         public final List<Type> args;
         public final Type res;
+        private final boolean ground;
 
-        public TFunction(Type arg, Type res) {
-            this.args = Collections.singletonList(arg);
+        private TFunction(Type[] args, Type res, boolean ground) {
+            this.args = Collections.unmodifiableList(Arrays.asList(args));
             this.res = res;
+            this.ground = ground;
         }
 
-        public TFunction(List<Type> args, Type res) {
-            this.args = args;
-            this.res = res;
+        private static boolean isGround(Type type) {
+            return type instanceof TLiteral || (type instanceof TFunction && ((TFunction) type).ground);
+        }
+
+        static TFunction of(Type[] args, Type res) {
+            boolean ground = isGround(res);
+            for (Type arg : args) {
+                ground &= isGround(arg);
+            }
+            if (!ground) {
+                return new TFunction(args, res, false);
+            }
+            FunctionKey key = new FunctionKey(args, res);
+            TFunction function = TABLE.get(key);
+            if (function == null) {
+                TFunction created = new TFunction(args, res, true);
+                function = TABLE.putIfAbsent(key, created);
+                if (function == null) {
+                    function = created;
+                }
+            }
+            return function;
         }
 
         public Type getArg(int i) {
             return args.get(i);
         }
 
+        public boolean isGround() {
+            return ground;
+        }
+
         @Override
         public Type expose(Environment env) {
-            return new TFunction(exposeArgs(env), res.expose(env));
+            if (ground) {
+                return this;
+            }
+            Type exposedRes = res.expose(env);
+            Type[] exposedArgs = null;
+            for (int i = 0; i < args.size(); i++) {
+                Type arg = args.get(i);
+                Type exposedArg = arg.expose(env);
+                if (exposedArg != arg && exposedArgs == null) {
+                    exposedArgs = args.toArray(new Type[0]);
+                }
+                if (exposedArgs != null) {
+                    exposedArgs[i] = exposedArg;
+                }
+            }
+            if (exposedArgs == null && exposedRes == res) {
+                return this;
+            }
+            return of(exposedArgs != null ? exposedArgs : args.toArray(new Type[0]), exposedRes);
         }
 
         @Override
@@ -110,52 +249,78 @@ public class Types {
 
         @Override
         public Type genericCopy(Environment env, Map<Type, Type> mapping) {
-            return new TFunction(copyArgs(env, mapping), res.genericCopy(env, mapping));
+            if (ground) {
+                return this;
+            }
+            Type[] copiedArgs = new Type[args.size()];
+            boolean changed = false;
+            for (int i = 0; i < copiedArgs.length; i++) {
+                copiedArgs[i] = args.get(i).genericCopy(env, mapping);
+                changed |= copiedArgs[i] != args.get(i);
+            }
+            Type copiedRes = res.genericCopy(env, mapping);
+            if (!changed && copiedRes == res) {
+                return this;
+            }
+            return of(copiedArgs, copiedRes);
         }
 
-        private List<Type> exposeArgs(Environment env) {
-            List<Type> exposedArgs = new ArrayList<>();
-            for (Type arg : args) {
-                exposedArgs.add(arg.expose(env));
-            }
-            return exposedArgs;
+        @Override
+        public String toString() {
+            return "(" + args + " => " + res + ')';
         }
+    }
+
+    /**
+     * Key of hash-consing table, parts of the type are compared by identity
+     */
+    private static final class FunctionKey {
+        private final Type[] args;
+        private final Type res;
+        private final int hash;
 
-        private List<Type> copyArgs(Environment env, Map<Type, Type> mappings) {
-            List<Type> copiedArgs = new ArrayList<>();
+        FunctionKey(Type[] args, Type res) {
+            this.args = args;
+            this.res = res;
+            int hash = System.identityHashCode(res);
             for (Type arg : args) {
-                copiedArgs.add(arg.genericCopy(env, mappings));
+                hash = 31 * hash + System.identityHashCode(arg);
             }
-            return copiedArgs;
+            this.hash = hash;
         }
 
         @Override
         public boolean equals(Object o) {
             if (this == o) return true;
-            if (o == null || getClass() != o.getClass()) return false;
-            TFunction tFunction = (TFunction) o;
-            return Objects.equals(args, tFunction.args) &&
-                    Objects.equals(res, tFunction.res);
+            if (!(o instanceof FunctionKey)) return false;
+            FunctionKey key = (FunctionKey) o;
+            if (res != key.res || args.length != key.args.length) {
+                return false;
+            }
+            for (int i = 0; i < args.length; i++) {
+                if (args[i] != key.args[i]) {
+                    return false;
+                }
+            }
+            return true;
         }
 
         @Override
         public int hashCode() {
-            return Objects.hash(args, res);
-        }
-
-        @Override
-        public String toString() {
-            return "(" + args + " => " + res + ')';
+            return hash;
         }
     }
 
+    /**
+     * Literal types are singletons, compared by identity
+     */
     public static class TLiteral extends Type {
         public static final TLiteral TInt = new TLiteral("Int");
         public static final TLiteral TBool = new TLiteral("Bool");
 
         private final String name;
 
-        TLiteral(String name) {
+        private TLiteral(String name) {
             this.name = name;
         }
 
@@ -174,19 +339,6 @@ public class Types {
             return this;
         }
 
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (o == null || getClass() != o.getClass()) return false;
-            TLiteral tLiteral = (TLiteral) o;
-            return Objects.equals(name, tLiteral.name);
-        }
-
-        @Override
-        public int hashCode() {
-            return Objects.hash(name);
-        }
-
         @Override
         public String toString() {
             return name;
@@ -195,11 +347,14 @@ public class Types {
 
 
     public static TFunction func(Type arg, Type res) {
-        return new TFunction(arg, res);
+        return TFunction.of(new Type[]{arg}, res);
     }
 
+    /**
+     * Returns the shared function type with these args and result
+     */
     public static TFunction func(List<Type> args, Type res) {
-        return new TFunction(args, res);
+        return TFunction.of(args.toArray(new Type[0]), res);
     }
 
     public static Type typeVar(String name) {
@@ -0,0 +1,16 @@
+package com.ride.android;
+
+import com.ride.android.ast.Ast;
+import com.ride.android.ast.Expression;
+import com.ride.android.parser.Parser;
+import com.ride.android.parser.Tokenizer;
+import com.ride.android.types.TypeChecker;
+
+import java.util.List;
+
+public class TypedHelpers {
+    // top-level expressions of the program, resolved and type checked, as passes take them
+    public static List<Expression> typed(String input) {
+        return TypeChecker.infer(Ast.ast(Parser.parse(Tokenizer.tokenize(input))));
+    }
+}
@@ -0,0 +1,92 @@
+package com.ride.android.ast;
+
+import com.ride.android.parser.Parser;
+import com.ride.android.parser.Tokenizer;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ResolverTest {
+    private static Expression ast(String input) {
+        return Ast.ast(Parser.parse(Tokenizer.tokenize(input))).get(0);
+    }
+
+    @Test
+    public void testLambdaArgs() {
+        // given
+        Expressions.Lambda lambda = (Expressions.Lambda) ast("(lambda (x y) (+ y x))");
+
+        // when
+        Expressions.Application body = (Expressions.Application) lambda.body;
+        Expressions.Variable plus = (Expressions.Variable) body.function;
+        Expressions.Variable y = (Expressions.Variable) body.getArg(0);
+        Expressions.Variable x = (Expressions.Variable) body.getArg(1);
+
+        // then
+        assertTrue(plus.isGlobal());
+        assertEquals(0, y.getDepth());
+        assertEquals(1, y.getSlot());
+        assertEquals(0, x.getDepth());
+        assertEquals(0, x.getSlot());
+    }
+
+    @Test
+    public void testNestedFrames() {
+        // given
+        Expressions.Let let = (Expressions.Let) ast("(let (a 1) (lambda (b) (let (c a) b)))");
+
+        // when
+        Expressions.Lambda lambda = (Expressions.Lambda) let.body;
+        Expressions.Let innerLet = (Expressions.Let) lambda.body;
+        Expressions.Variable a = (Expressions.Variable) innerLet.varExpr;
+        Expressions.Variable b = (Expressions.Variable) innerLet.body;
+
+        // then
+        assertEquals(1, a.getDepth());
+        assertEquals(0, a.getSlot());
+        assertEquals(1, b.getDepth());
+        assertEquals(0, b.getSlot());
+    }
+
+    @Test
+    public void testShadowing() {
+        // given
+        Expressions.Lambda lambda = (Expressions.Lambda) ast("(lambda (x) (lambda (x) x))");
+
+        // when
+        Expressions.Lambda inner = (Expressions.Lambda) lambda.body;
+        Expressions.Variable x = (Expressions.Variable) inner.body;
+
+        // then
+        assertEquals(0, x.getDepth());
+    }
+
+    @Test
+    public void testLetRecVariableIsVisibleInItsExpression() {
+        // given
+        Expressions.LetRec letRec = (Expressions.LetRec) ast("(letrec (f (lambda (n) (f n))) (f 1))");
+
+        // when
+        Expressions.Lambda lambda = (Expressions.Lambda) letRec.varExpr;
+        Expressions.Variable recursive = (Expressions.Variable) ((Expressions.Application) lambda.body).function;
+        Expressions.Variable call = (Expressions.Variable) ((Expressions.Application) letRec.body).function;
+
+        // then
+        assertEquals(1, recursive.getDepth());
+        assertEquals(0, call.getDepth());
+    }
+
+    @Test
+    public void testDefinitionNameIsGlobal() {
+        // given
+        Expressions.Definition definition = (Expressions.Definition) ast("(define (f n) (f n))");
+
+        // when
+        Expressions.Application body = (Expressions.Application) definition.body;
+
+        // then
+        assertTrue(((Expressions.Variable) body.function).isGlobal());
+        assertEquals(0, ((Expressions.Variable) body.getArg(0)).getDepth());
+    }
+}
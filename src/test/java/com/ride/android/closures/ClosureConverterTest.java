@@ -0,0 +1,110 @@
+package com.ride.android.closures;
+
+import com.ride.android.ast.Ast;
+import com.ride.android.ast.Expression;
+import com.ride.android.ast.Expressions;
+import com.ride.android.parser.Parser;
+import com.ride.android.parser.Tokenizer;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ClosureConverterTest {
+    private static Expression convert(String input) {
+        return ClosureConverter.convert(Ast.ast(Parser.parse(Tokenizer.tokenize(input))).get(0));
+    }
+
+    @Test
+    public void testCapturedArgument() {
+        // given
+        Expressions.Lambda lambda = (Expressions.Lambda) convert("(lambda (a) (lambda (b) a))");
+
+        // when
+        Expressions.Lambda inner = (Expressions.Lambda) lambda.body;
+        Expressions.Variable a = (Expressions.Variable) inner.body;
+
+        // then
+        assertTrue(lambda.getCaptures().isEmpty());
+        assertEquals(1, inner.getCaptures().size());
+        assertTrue(a.isCaptured());
+        assertEquals(0, a.getSlot());
+        Expressions.Variable source = inner.getCaptures().get(0);
+        assertEquals("a", source.name);
+        assertEquals(0, source.getDepth());
+        assertEquals(0, source.getSlot());
+    }
+
+    @Test
+    public void testOnlyUsedLocalsAreCaptured() {
+        // given
+        Expressions.Let let = (Expressions.Let) convert("(let (x 1) (let (y 2) (lambda (z) (+ y (+ y z)))))");
+
+        // when
+        Expressions.Lambda lambda = (Expressions.Lambda) ((Expressions.Let) let.body).body;
+
+        // then
+        assertEquals(1, lambda.getCaptures().size());
+        Expressions.Variable source = lambda.getCaptures().get(0);
+        assertEquals("y", source.name);
+        assertEquals(0, source.getDepth());
+    }
+
+    @Test
+    public void testCaptureThroughEnclosingLambda() {
+        // given
+        Expressions.Lambda outer = (Expressions.Lambda) convert("(lambda (a) (lambda (b) (lambda (c) a)))");
+
+        // when
+        Expressions.Lambda middle = (Expressions.Lambda) outer.body;
+        Expressions.Lambda inner = (Expressions.Lambda) middle.body;
+
+        // then
+        assertEquals(1, middle.getCaptures().size());
+        assertEquals(0, middle.getCaptures().get(0).getDepth());
+        assertEquals(1, inner.getCaptures().size());
+        assertTrue(inner.getCaptures().get(0).isCaptured());
+        assertEquals(0, inner.getCaptures().get(0).getSlot());
+    }
+
+    @Test
+    public void testLetRecLambdaRefersToItself() {
+        // given
+        Expressions.LetRec letRec = (Expressions.LetRec) convert("(letrec (f (lambda (n) (f (lambda (m) (f m))))) f)");
+
+        // when
+        Expressions.Lambda lambda = (Expressions.Lambda) letRec.varExpr;
+        Expressions.Application body = (Expressions.Application) lambda.body;
+        Expressions.Variable self = (Expressions.Variable) body.function;
+        Expressions.Lambda inner = (Expressions.Lambda) body.getArg(0);
+
+        // then
+        assertTrue(lambda.getCaptures().isEmpty());
+        assertFalse(self.isCaptured());
+        assertEquals(1, inner.getCaptures().size());
+        assertEquals("f", inner.getCaptures().get(0).name);
+        assertFalse(inner.getCaptures().get(0).isCaptured());
+    }
+
+    @Test
+    public void testLambdaArgumentAtFrameOfLiftedLetIsCaptured() {
+        // given
+        Expressions.Lambda outer = (Expressions.Lambda) ClosureConverter.convert(LambdaLifter.lift(Ast.ast(Parser.parse(
+                Tokenizer.tokenize("(lambda (n) (if (let (f (lambda (x) x)) (f n)) (lambda (a) (lambda (b) a)) n))")))
+                .get(0)));
+
+        // when
+        Expressions.IfExpr ifExpr = (Expressions.IfExpr) outer.body;
+        Expressions.Lambda lifted = (Expressions.Lambda) ((Expressions.Let) ifExpr.condition).varExpr;
+        // frame of a is the frame of let, that bound lifted f
+        Expressions.Lambda middle = (Expressions.Lambda) ifExpr.ifBranch;
+        Expressions.Lambda inner = (Expressions.Lambda) middle.body;
+
+        // then
+        assertTrue(lifted.isLifted());
+        assertEquals(1, inner.getCaptures().size());
+        assertEquals("a", inner.getCaptures().get(0).name);
+        assertTrue(((Expressions.Variable) inner.body).isCaptured());
+    }
+}
@@ -1,4 +1,106 @@
-package com.ride.android.types;
+package com.ride.android.closures;
+
+import com.ride.android.ast.Ast;
+import com.ride.android.ast.Expression;
+import com.ride.android.ast.Expressions;
+import com.ride.android.parser.Parser;
+import com.ride.android.parser.Tokenizer;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 public class LambdaLifterTest {
+    private static Expression lift(String input) {
+        return LambdaLifter.lift(Ast.ast(Parser.parse(Tokenizer.tokenize(input))).get(0));
+    }
+
+    @Test
+    public void testCalledLambdaIsLifted() {
+        // given
+        Expressions.Let outer = (Expressions.Let) lift("(let (y 1) (let (f (lambda (x) (+ x y))) (f 2)))");
+
+        // when
+        Expressions.Let let = (Expressions.Let) outer.body;
+        Expressions.Lambda lambda = (Expressions.Lambda) let.varExpr;
+        Expressions.Variable y = (Expressions.Variable) ((Expressions.Application) lambda.body).getArg(1);
+        Expressions.Application call = (Expressions.Application) let.body;
+
+        // then
+        assertTrue(lambda.isLifted());
+        assertEquals(1, lambda.getLiftedParams().size());
+        assertEquals("y", lambda.getLiftedParams().get(0).name);
+        // free variable is the param after lambda args
+        assertEquals(0, y.getDepth());
+        assertEquals(1, y.getSlot());
+        // and it is passed by the call
+        assertEquals(2, call.getArgs().size());
+        Expressions.Variable extraArg = (Expressions.Variable) call.getArg(1);
+        assertEquals("y", extraArg.name);
+        assertEquals(1, extraArg.getDepth());
+        assertEquals(0, extraArg.getSlot());
+    }
+
+    @Test
+    public void testLambdaUsedAsValueIsNotLifted() {
+        // given
+        Expressions.Let let = (Expressions.Let) lift("(let (f (lambda (x) x)) (f f))");
+
+        // then
+        assertFalse(((Expressions.Lambda) let.varExpr).isLifted());
+        assertEquals(1, ((Expressions.Application) let.body).getArgs().size());
+    }
+
+    @Test
+    public void testSelfCallGetsFreeVariables() {
+        // given
+        Expressions.Let let = (Expressions.Let) lift(
+                "(let (y 3) (letrec (loop (lambda (i) (if (== i 0) y (loop (- i 1))))) (loop 10)))");
+
+        // when
+        Expressions.LetRec letRec = (Expressions.LetRec) let.body;
+        Expressions.Lambda lambda = (Expressions.Lambda) letRec.varExpr;
+        Expressions.Application selfCall = (Expressions.Application) ((Expressions.IfExpr) lambda.body).elseBranch;
+
+        // then
+        assertTrue(lambda.isLifted());
+        assertEquals(2, selfCall.getArgs().size());
+        Expressions.Variable extraArg = (Expressions.Variable) selfCall.getArg(1);
+        assertEquals(0, extraArg.getDepth());
+        assertEquals(1, extraArg.getSlot());
+        assertEquals(2, ((Expressions.Application) letRec.body).getArgs().size());
+    }
+
+    @Test
+    public void testFreeVariablesOfCalledFunctionAreFreeInCaller() {
+        // given
+        Expressions.Lambda outer = (Expressions.Lambda) lift(
+                "(lambda (a) (let (g (lambda (b) (* a b))) (let (h (lambda (c) (g c))) (h 2))))");
+
+        // when
+        Expressions.Let gLet = (Expressions.Let) outer.body;
+        Expressions.Let hLet = (Expressions.Let) gLet.body;
+        Expressions.Lambda h = (Expressions.Lambda) hLet.varExpr;
+
+        // then
+        assertTrue(h.isLifted());
+        assertEquals(1, h.getLiftedParams().size());
+        assertEquals("a", h.getLiftedParams().get(0).name);
+    }
+
+    @Test
+    public void testLambdaCallingEnclosingLiftedFunctionIsNotLifted() {
+        // given
+        Expressions.LetRec letRec = (Expressions.LetRec) lift(
+                "(letrec (f (lambda (n) (let (g (lambda (m) (f m))) (g n)))) (f 5))");
+
+        // when
+        Expressions.Lambda f = (Expressions.Lambda) letRec.varExpr;
+        Expressions.Lambda g = (Expressions.Lambda) ((Expressions.Let) f.body).varExpr;
+
+        // then
+        assertTrue(f.isLifted());
+        assertFalse(g.isLifted());
+    }
 }
@@ -0,0 +1,87 @@
+package com.ride.android.codegen;
+
+import com.android.dx.TypeId;
+import com.ride.android.ast.Expression;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static com.ride.android.TypedHelpers.typed;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ModuleTest {
+    private Module module;
+
+    @Before
+    public void setUp() {
+        module = new Module();
+    }
+
+    @Test
+    public void testFunctionCalledByEntryPointIsCompiled() {
+        // given
+        FunctionCode main = module.make(TypeId.INT, "main");
+        FunctionCode used = module.makeFunction(TypeId.INT, "used");
+        FunctionCode unused = module.makeFunction(TypeId.INT, "unused");
+        for (FunctionCode function : new FunctionCode[]{used, unused}) {
+            DeferredLocal<Integer> result = function.newLocal(TypeId.INT);
+            function.load(result, 1);
+            function.returnValue(result);
+        }
+        DeferredLocal<Integer> result = main.newLocal(TypeId.INT);
+        main.call(used.getMethodId(), result);
+        main.returnValue(result);
+
+        // when
+        module.compile();
+
+        // then
+        assertEquals(1, used.getRegisterCount());
+        assertTrue(unused.getRegisterCount() < 0);
+        assertEquals(1, module.getRemovedDeclarations());
+    }
+
+    @Test
+    public void testDefinitionIsCompiledOnlyIfItsFieldIsRead() {
+        // given
+        FunctionCode main = module.make(TypeId.OBJECT, "main");
+        Module.ModuleDefinition used = module.makeDefine("used", TypeId.OBJECT);
+        Module.ModuleDefinition unused = module.makeDefine("unused", TypeId.OBJECT);
+        for (Module.ModuleDefinition definition : new Module.ModuleDefinition[]{used, unused}) {
+            FunctionCode apply = definition.lambdaCode.applyCode;
+            DeferredLocal<Object> result = apply.newLocal(TypeId.OBJECT);
+            apply.sget(definition.definitionField, result);
+            apply.returnValue(result);
+        }
+        DeferredLocal<Object> result = main.newLocal(TypeId.OBJECT);
+        main.sget(used.definitionField, result);
+        main.returnValue(result);
+
+        // when
+        module.compile();
+
+        // then
+        assertEquals(1, used.lambdaCode.applyCode.getRegisterCount());
+        assertTrue(unused.lambdaCode.applyCode.getRegisterCount() < 0);
+        // field and lambda class
+        assertEquals(2, module.getRemovedDeclarations());
+    }
+
+    @Test
+    public void testFunctionClassOfUnreachableDefinitionIsNotCompiled() {
+        // given
+        Generator generator = new Generator(true, Generator.DEFAULT_INLINE_BUDGET);
+        for (Expression expression : typed("(define (ap2 f a b) (f a b)) (define (g x) x) (g 1)")) {
+            generator.add(expression);
+        }
+
+        // when
+        String dex = new String(generator.compile(), StandardCharsets.ISO_8859_1);
+
+        // then
+        assertFalse(dex.contains("LFunction2;"));
+    }
+}
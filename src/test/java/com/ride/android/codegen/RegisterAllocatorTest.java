@@ -0,0 +1,105 @@
+package com.ride.android.codegen;
+
+import com.android.dx.Label;
+import com.android.dx.TypeId;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class RegisterAllocatorTest {
+    private Module module;
+
+    @Before
+    public void setUp() {
+        module = new Module();
+    }
+
+    @Test
+    public void testSequentialTemporariesShareRegister() {
+        // given: a = 1; b = a + a; c = b + b; return c
+        FunctionCode code = module.make(TypeId.INT, "f");
+        DeferredLocal<Integer> a = code.newLocal(TypeId.INT);
+        DeferredLocal<Integer> b = code.newLocal(TypeId.INT);
+        DeferredLocal<Integer> c = code.newLocal(TypeId.INT);
+        code.load(a, 1);
+        code.add(b, a, a);
+        code.add(c, b, b);
+        code.returnValue(c);
+
+        // when
+        module.compile();
+
+        // then
+        assertEquals(3, code.getLocalCount());
+        assertEquals(2, code.getRegisterCount());
+        assertSame(a.getRealLocal(), c.getRealLocal());
+        assertNotSame(a.getRealLocal(), b.getRealLocal());
+    }
+
+    @Test
+    public void testLocalsOfDifferentTypesAreNotShared() {
+        // given: a = 1; b = valueOf(a); return b
+        FunctionCode code = module.make(TypeId.OBJECT, "f");
+        DeferredLocal<Integer> a = code.newLocal(TypeId.INT);
+        DeferredLocal<Object> b = code.newLocal(TypeId.OBJECT);
+        code.load(a, 1);
+        code.call(Module.METHOD_INT_VALUE_OF, b, a);
+        code.returnValue(b);
+
+        // when
+        module.compile();
+
+        // then
+        assertEquals(2, code.getRegisterCount());
+    }
+
+    @Test
+    public void testLocalIsLiveThroughBranches() {
+        // given: result is written in both branches, temporaries of branches must not take its register
+        FunctionCode code = module.make(TypeId.INT, "f", TypeId.BOOLEAN);
+        DeferredLocal<Integer> result = code.newLocal(TypeId.INT);
+        DeferredLocal<Integer> one = code.newLocal(TypeId.INT);
+        DeferredLocal<Integer> two = code.newLocal(TypeId.INT);
+        Label elseLabel = new Label();
+        Label afterLabel = new Label();
+        code.compareZ(elseLabel, code.getParam(0, TypeId.BOOLEAN));
+        code.load(result, 1);
+        code.jump(afterLabel);
+        code.markLabel(elseLabel);
+        code.load(one, 1);
+        code.add(result, one, one);
+        code.markLabel(afterLabel);
+        code.load(two, 2);
+        code.add(result, result, two);
+        code.returnValue(result);
+
+        // when
+        module.compile();
+
+        // then
+        assertEquals(2, code.getRegisterCount());
+        assertSame(one.getRealLocal(), two.getRealLocal());
+        assertNotSame(result.getRealLocal(), one.getRealLocal());
+    }
+
+    @Test
+    public void testUnreachableCodeIsNotAllocated() {
+        // given: locals after return are never used
+        FunctionCode code = module.make(TypeId.INT, "f");
+        DeferredLocal<Integer> a = code.newLocal(TypeId.INT);
+        DeferredLocal<Integer> b = code.newLocal(TypeId.INT);
+        code.load(a, 1);
+        code.returnValue(a);
+        code.load(b, 2);
+        code.returnValue(b);
+
+        // when
+        module.compile();
+
+        // then
+        assertEquals(1, code.getRegisterCount());
+    }
+}
@@ -0,0 +1,77 @@
+package com.ride.android.codegen;
+
+import com.ride.android.ast.Ast;
+import com.ride.android.ast.Expression;
+import com.ride.android.parser.Parser;
+import com.ride.android.parser.Tokenizer;
+import com.ride.android.types.TypeChecker;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Makes programs with 10 and 10k definitions, that are used as values, with eager and lazy initialization
+ * <p>
+ * Every definition is reachable, but a run calls only the last one, so startup of eager program grows
+ * with count of definitions (all lambdas are loaded and made in Main init), and of lazy one it stays flat.
+ * <p>
+ * Dex files are written to the directory from the first arg (default: build/startup), time them on device:
+ * <pre>
+ * adb push build/startup /data/local/tmp/startup
+ * adb shell 'time dalvikvm -cp /data/local/tmp/startup/lazy-10000.dex Main'
+ * </pre>
+ */
+public class StartupBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        File directory = new File(args.length > 0 ? args[0] : "build/startup");
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Couldn't create " + directory);
+        }
+        for (int definitions = 10; definitions <= 10_000; definitions *= 1000) {
+            String program = program(definitions);
+            for (boolean lazyInit : new boolean[]{false, true}) {
+                File output = new File(directory, (lazyInit ? "lazy-" : "eager-") + definitions + ".dex");
+                long start = System.nanoTime();
+                byte[] dex = compile(program, lazyInit);
+                long compiled = System.nanoTime();
+                try (OutputStream stream = new FileOutputStream(output)) {
+                    stream.write(dex);
+                }
+                System.out.printf("%,7d definitions, %5s init: %,10d bytes of dex, compiled in %7.1f ms -> %s%n",
+                        definitions, lazyInit ? "lazy" : "eager", dex.length, (compiled - start) / 1e6, output);
+            }
+        }
+    }
+
+    /**
+     * f_i is passed as a value by g_i, and g_i calls g_(i-1), unless its arg is 0
+     * Program calls g_(n-1) with 0, so only f_(n-1) is made
+     */
+    private static String program(int definitions) {
+        StringBuilder program = new StringBuilder();
+        program.append("(define (ap f x) (f x))\n");
+        for (int i = 0; i < definitions; i++) {
+            program.append("(define (f").append(i).append(" x) (+ x ").append(i).append("))\n");
+            program.append("(define (g").append(i).append(" n) ");
+            if (i == 0) {
+                program.append("(ap f0 n))\n");
+            } else {
+                program.append("(if (> n 0) (g").append(i - 1).append(" (- n 1)) (ap f").append(i).append(" n)))\n");
+            }
+        }
+        program.append("(g").append(definitions - 1).append(" 0)\n");
+        return program.toString();
+    }
+
+    private static byte[] compile(String program, boolean lazyInit) {
+        // without inlining, ap is not inlined and functions stay values
+        Generator generator = new Generator(false, 0, lazyInit);
+        for (Expression expression : TypeChecker.infer(Ast.ast(Parser.parse(Tokenizer.tokenize(program))))) {
+            generator.add(expression);
+        }
+        return generator.compile();
+    }
+}
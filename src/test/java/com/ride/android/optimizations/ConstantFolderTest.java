@@ -0,0 +1,88 @@
+package com.ride.android.optimizations;
+
+import com.ride.android.ast.Expression;
+import com.ride.android.ast.Expressions;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static com.ride.android.TypedHelpers.typed;
+import static com.ride.android.types.Types.integer;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThat;
+
+public class ConstantFolderTest {
+    private ConstantFolder folder;
+
+    @Before
+    public void setUp() {
+        folder = new ConstantFolder();
+    }
+
+    @Test
+    public void testConstantExpressionIsFolded() {
+        // given
+        Expression expression = typed("(+ 12 (if (> 5 10) 1 0))").get(0);
+
+        // when
+        Expression result = folder.fold(expression);
+
+        // then
+        assertThat(result, instanceOf(Expressions.Int.class));
+        assertEquals(12, ((Expressions.Int) result).number);
+        assertSame(integer(), result.getType());
+    }
+
+    @Test
+    public void testIdentitiesAreSimplified() {
+        // given
+        Expression expression = typed("(lambda (x) (+ (* x 1) 0))").get(0);
+
+        // when
+        Expressions.Lambda result = (Expressions.Lambda) folder.fold(expression);
+
+        // then
+        assertThat(result.body, instanceOf(Expressions.Variable.class));
+        assertEquals(expression.getType(), result.getType());
+    }
+
+    @Test
+    public void testDivisionByZeroIsKept() {
+        // given
+        Expression expression = typed("(/ 7 0)").get(0);
+
+        // when
+        Expression result = folder.fold(expression);
+
+        // then
+        assertSame(expression, result);
+    }
+
+    @Test
+    public void testOperandThatMayFailIsKept() {
+        // given
+        Expression expression = typed("(lambda (f) (* (f 1) 0))").get(0);
+
+        // when
+        Expressions.Lambda result = (Expressions.Lambda) folder.fold(expression);
+
+        // then
+        assertThat(result.body, instanceOf(Expressions.Application.class));
+    }
+
+    @Test
+    public void testRedefinedBuiltinIsNotFolded() {
+        // given
+        List<Expression> expressions = typed("(define (+ a b) (- a b)) (+ 10 3)");
+
+        // when
+        folder.fold(expressions.get(0));
+        Expression result = folder.fold(expressions.get(1));
+
+        // then
+        assertSame(expressions.get(1), result);
+    }
+}
@@ -0,0 +1,79 @@
+package com.ride.android.optimizations;
+
+import com.ride.android.ast.Expression;
+import com.ride.android.ast.Expressions;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static com.ride.android.TypedHelpers.typed;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThat;
+
+public class DeadCodeEliminatorTest {
+    private DeadCodeEliminator eliminator;
+
+    @Before
+    public void setUp() {
+        eliminator = new DeadCodeEliminator();
+    }
+
+    @Test
+    public void testUnusedPureBindingIsRemoved() {
+        // given
+        Expression expression = typed("(let (a 1) (let (b (+ a 2)) (let (c 3) a)))").get(0);
+
+        // when
+        Expressions.Let result = (Expressions.Let) eliminator.eliminate(expression);
+
+        // then
+        assertEquals("a", result.var);
+        Expressions.Variable a = (Expressions.Variable) result.body;
+        assertEquals(0, a.getDepth());
+        assertEquals(0, a.getSlot());
+        assertEquals(2, eliminator.getRemovedBindings());
+    }
+
+    @Test
+    public void testBindingThatMayFailIsKept() {
+        // given
+        Expression expression = typed("(lambda (x) (let (a (/ 1 x)) 2))").get(0);
+
+        // when
+        Expression result = eliminator.eliminate(expression);
+
+        // then
+        assertSame(expression, result);
+        assertEquals(0, eliminator.getRemovedBindings());
+    }
+
+    @Test
+    public void testLetRecUsedOnlyByItselfIsRemoved() {
+        // given
+        Expression expression = typed(
+                "(let (k 5) (letrec (loop (lambda (i) (if (== i 0) k (loop (- i 1))))) k))").get(0);
+
+        // when
+        Expressions.Let result = (Expressions.Let) eliminator.eliminate(expression);
+
+        // then
+        assertThat(result.body, instanceOf(Expressions.Variable.class));
+        assertEquals(0, ((Expressions.Variable) result.body).getDepth());
+    }
+
+    @Test
+    public void testRedefinedBuiltinIsNotPure() {
+        // given
+        List<Expression> expressions = typed("(define (+ a b) (+ a b)) (let (x (+ 1 2)) 3)");
+
+        // when
+        eliminator.eliminate(expressions.get(0));
+        Expression result = eliminator.eliminate(expressions.get(1));
+
+        // then
+        assertSame(expressions.get(1), result);
+    }
+}
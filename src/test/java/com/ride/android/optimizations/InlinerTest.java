@@ -0,0 +1,132 @@
+package com.ride.android.optimizations;
+
+import com.ride.android.ast.Expression;
+import com.ride.android.ast.Expressions;
+import org.junit.Test;
+
+import java.util.List;
+
+import static com.ride.android.TypedHelpers.typed;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThat;
+
+public class InlinerTest {
+    @Test
+    public void testDefinitionCallIsInlined() {
+        // given
+        Inliner inliner = new Inliner(10);
+        List<Expression> expressions = typed("(define (sq x) (* x x)) (sq 3)");
+
+        // when
+        inliner.define((Expressions.Definition) inliner.inline(expressions.get(0)));
+        Expression result = inliner.inline(expressions.get(1));
+
+        // then
+        assertEquals(1, inliner.getInlinedCalls());
+        Expressions.Application application = (Expressions.Application) result;
+        assertEquals("*", ((Expressions.Variable) application.function).name);
+        assertEquals(3, ((Expressions.Int) application.getArg(0)).number);
+        assertEquals(3, ((Expressions.Int) application.getArg(1)).number);
+    }
+
+    @Test
+    public void testRecursiveDefinitionIsNotInlined() {
+        // given
+        Inliner inliner = new Inliner(100);
+        List<Expression> expressions = typed("(define (loop x) (if (> x 0) (loop (- x 1)) x)) (loop 3)");
+
+        // when
+        inliner.define((Expressions.Definition) inliner.inline(expressions.get(0)));
+        Expression result = inliner.inline(expressions.get(1));
+
+        // then
+        assertSame(expressions.get(1), result);
+        assertEquals(0, inliner.getInlinedCalls());
+    }
+
+    @Test
+    public void testBodyOverBudgetIsNotInlined() {
+        // given
+        Inliner inliner = new Inliner(3);
+        Expression expression = typed("(let (f (lambda (x) (* x (+ x 1)))) (f 2))").get(0);
+
+        // when
+        Expression result = inliner.inline(expression);
+
+        // then
+        assertSame(expression, result);
+    }
+
+    @Test
+    public void testLetBoundLambdaIsInlinedAndDropped() {
+        // given
+        Inliner inliner = new Inliner(10);
+        Expression expression = typed("(let (k 1) (let (f (lambda (x) (+ x k))) (f 2)))").get(0);
+
+        // when
+        Expressions.Let result = (Expressions.Let) inliner.inline(expression);
+
+        // then
+        Expressions.Application body = (Expressions.Application) result.body;
+        assertEquals(2, ((Expressions.Int) body.getArg(0)).number);
+        Expressions.Variable k = (Expressions.Variable) body.getArg(1);
+        assertEquals("k", k.name);
+        assertEquals(0, k.getDepth());
+        assertEquals(0, k.getSlot());
+    }
+
+    @Test
+    public void testArgIsEvaluatedOnce() {
+        // given
+        Inliner inliner = new Inliner(10);
+        Expression expression = typed("(let (f (lambda (x) (* x x))) (f (+ 1 2)))").get(0);
+
+        // when
+        Expression result = inliner.inline(expression);
+
+        // then
+        assertThat(result, instanceOf(Expressions.Let.class));
+        Expressions.Let let = (Expressions.Let) result;
+        assertEquals("x", let.var);
+        assertThat(let.varExpr, instanceOf(Expressions.Application.class));
+        Expressions.Application body = (Expressions.Application) let.body;
+        assertEquals(0, ((Expressions.Variable) body.getArg(0)).getDepth());
+        assertEquals(0, ((Expressions.Variable) body.getArg(1)).getDepth());
+    }
+
+    @Test
+    public void testDefinitionIsNotInlinedAfterItsGlobalIsRedefined() {
+        // given
+        Inliner inliner = new Inliner(10);
+        List<Expression> expressions = typed("(define (g a) (+ a 1)) (define (+ a b) (- a b)) (g 5)");
+
+        // when
+        inliner.define((Expressions.Definition) inliner.inline(expressions.get(0)));
+        inliner.define((Expressions.Definition) inliner.inline(expressions.get(1)));
+        Expression result = inliner.inline(expressions.get(2));
+
+        // then
+        assertSame(expressions.get(2), result);
+        assertEquals(0, inliner.getInlinedCalls());
+    }
+
+    @Test
+    public void testRedefinitionBodyDoesNotInlineItsUser() {
+        // given
+        // f is over the budget, so g calls it by name
+        Inliner inliner = new Inliner(4);
+        List<Expression> expressions = typed("(define (f x) (* x (+ x 3))) (define (g x) (f x)) (define (f x) (* 2 (g x)))");
+        inliner.define((Expressions.Definition) inliner.inline(expressions.get(0)));
+        inliner.define((Expressions.Definition) inliner.inline(expressions.get(1)));
+
+        // when
+        Expressions.Definition result = (Expressions.Definition) inliner.inline(expressions.get(2));
+
+        // then
+        Expressions.Application body = (Expressions.Application) result.body;
+        Expressions.Application call = (Expressions.Application) body.getArg(1);
+        assertEquals("g", ((Expressions.Variable) call.function).name);
+    }
+}
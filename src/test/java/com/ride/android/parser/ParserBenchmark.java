@@ -0,0 +1,49 @@
+package com.ride.android.parser;
+
+import java.util.List;
+
+/**
+ * Measures tokenizing and parsing time for growing inputs (1k to 10M tokens)
+ * Time per token should stay flat, if both phases are linear
+ * <p>
+ * Run with enough heap, e.g. -Xmx4g
+ */
+public class ParserBenchmark {
+    // (f 1 2 3 4 5 6 7 8) is 11 tokens
+    private static final String FORM = "(f 1 2 3 4 5 6 7 8)\n";
+    private static final int TOKENS_PER_FORM = 11;
+
+    public static void main(String[] args) {
+        // warm up
+        run(100_000, false);
+
+        for (int tokens = 1_000; tokens <= 10_000_000; tokens *= 10) {
+            run(tokens, true);
+        }
+    }
+
+    private static void run(int tokensCount, boolean report) {
+        int forms = Math.max(tokensCount / TOKENS_PER_FORM, 1);
+        StringBuilder input = new StringBuilder(forms * FORM.length());
+        for (int i = 0; i < forms; i++) {
+            input.append(FORM);
+        }
+        String program = input.toString();
+
+        long start = System.nanoTime();
+        TokenBuffer tokens = Tokenizer.tokenize(program);
+        long tokenized = System.nanoTime();
+        List<SExpressions.SExpression> nodes = Parser.parse(tokens);
+        long parsed = System.nanoTime();
+
+        if (nodes.size() != forms) {
+            throw new IllegalStateException("Expected " + forms + " forms, got " + nodes.size());
+        }
+        if (report) {
+            System.out.printf("%,12d tokens: tokenize %8.1f ms (%5.1f ns/token), parse %8.1f ms (%5.1f ns/token)%n",
+                    tokens.size(),
+                    (tokenized - start) / 1e6, (double) (tokenized - start) / tokens.size(),
+                    (parsed - tokenized) / 1e6, (double) (parsed - tokenized) / tokens.size());
+        }
+    }
+}
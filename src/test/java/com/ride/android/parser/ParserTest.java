@@ -0,0 +1,75 @@
+package com.ride.android.parser;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+
+public class ParserTest {
+
+    @Test
+    public void testNestedLists() {
+        // given
+        String input = "((+) (is 2)) 5";
+
+        // when
+        List<SExpressions.SExpression> nodes = Parser.parse(Tokenizer.tokenize(input));
+
+        // then
+        assertEquals(2, nodes.size());
+        SExpressions.ListSExpr first = (SExpressions.ListSExpr) nodes.get(0);
+        assertEquals(2, first.getAll().size());
+        assertEquals("+", ((SExpressions.Symbol) ((SExpressions.ListSExpr) first.get(0)).get(0)).name);
+        assertEquals(2, ((SExpressions.Integer) ((SExpressions.ListSExpr) first.get(1)).get(1)).value);
+        assertEquals(5, ((SExpressions.Integer) nodes.get(1)).value);
+    }
+
+    @Test
+    public void testDeepNesting() {
+        // given
+        int depth = 100_000;
+        StringBuilder input = new StringBuilder();
+        for (int i = 0; i < depth; i++) {
+            input.append('(');
+        }
+        input.append("#t");
+        for (int i = 0; i < depth; i++) {
+            input.append(')');
+        }
+
+        // when
+        List<SExpressions.SExpression> nodes = Parser.parse(Tokenizer.tokenize(input.toString()));
+
+        // then
+        SExpressions.SExpression node = nodes.get(0);
+        for (int i = 0; i < depth; i++) {
+            node = ((SExpressions.ListSExpr) node).get(0);
+        }
+        assertThat(node, instanceOf(SExpressions.Boolean.class));
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testUnclosedList() {
+        // given
+        String input = "(define (a) (+ 1 2)";
+
+        // when
+        Parser.parse(Tokenizer.tokenize(input));
+
+        // then fail
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testUnexpectedClosingParen() {
+        // given
+        String input = "(+ 1 2))";
+
+        // when
+        Parser.parse(Tokenizer.tokenize(input));
+
+        // then fail
+    }
+}
@@ -0,0 +1,159 @@
+package com.ride.android.parser;
+
+import com.ride.android.symbols.Symbols;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TokenizerTest {
+
+    @Test
+    public void testParensWithoutSpaces() {
+        // given
+        String input = "((+) (is 2))";
+
+        // when
+        TokenBuffer tokens = Tokenizer.tokenize(input);
+
+        // then
+        assertEquals(9, tokens.size());
+        assertEquals(TokenBuffer.PAREN_OPEN, tokens.kind(0));
+        assertEquals(TokenBuffer.SYMBOL, tokens.kind(2));
+        assertEquals("+", Symbols.name(tokens.symbol(2)));
+        assertEquals(TokenBuffer.NUMBER, tokens.kind(6));
+        assertEquals(2, tokens.number(6));
+        assertEquals(TokenBuffer.PAREN_CLOSE, tokens.kind(8));
+    }
+
+    @Test
+    public void testTabsAndNewlines() {
+        // given
+        String input = "(define (f x)\n\t(+ x\r\n1))";
+
+        // when
+        TokenBuffer tokens = Tokenizer.tokenize(input);
+
+        // then
+        assertEquals(12, tokens.size());
+        assertEquals("x", Symbols.name(tokens.symbol(8)));
+        assertEquals(1, tokens.number(9));
+    }
+
+    @Test
+    public void testNegativeNumbers() {
+        // given
+        String input = "(- -12 -)";
+
+        // when
+        TokenBuffer tokens = Tokenizer.tokenize(input);
+
+        // then
+        assertEquals(TokenBuffer.SYMBOL, tokens.kind(1));
+        assertEquals(TokenBuffer.NUMBER, tokens.kind(2));
+        assertEquals(-12, tokens.number(2));
+        assertEquals(TokenBuffer.SYMBOL, tokens.kind(3));
+    }
+
+    @Test
+    public void testIntegerBounds() {
+        // given
+        String input = "2147483647 -2147483648";
+
+        // when
+        TokenBuffer tokens = Tokenizer.tokenize(input);
+
+        // then
+        assertEquals(Integer.MAX_VALUE, tokens.number(0));
+        assertEquals(Integer.MIN_VALUE, tokens.number(1));
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testIntegerOverflow() {
+        // given
+        String input = "2147483648";
+
+        // when
+        Tokenizer.tokenize(input);
+
+        // then fail
+    }
+
+    @Test
+    public void testBooleansAndSymbols() {
+        // given
+        String input = "#t #f #true 5a";
+
+        // when
+        TokenBuffer tokens = Tokenizer.tokenize(input);
+
+        // then
+        assertEquals(TokenBuffer.BOOLEAN, tokens.kind(0));
+        assertTrue(tokens.bool(0));
+        assertEquals(false, tokens.bool(1));
+        assertEquals(TokenBuffer.SYMBOL, tokens.kind(2));
+        assertEquals(TokenBuffer.SYMBOL, tokens.kind(3));
+    }
+
+    @Test
+    public void testBufferGrows() {
+        // given
+        StringBuilder input = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            input.append("(a ").append(i).append(')');
+        }
+
+        // when
+        TokenBuffer tokens = Tokenizer.tokenize(input.toString());
+
+        // then
+        assertEquals(4000, tokens.size());
+        assertEquals(999, tokens.number(3998));
+    }
+
+    @Test
+    public void testReadFormByForm() throws IOException {
+        // given
+        Tokenizer tokenizer = new Tokenizer(new StringReader("(define (f x) x)\n 5 (f\n 2)"));
+        TokenBuffer tokens = new TokenBuffer();
+
+        // when
+        List<Integer> formSizes = new ArrayList<>();
+        while (tokenizer.readForm(tokens)) {
+            formSizes.add(tokens.size());
+            tokens.clear();
+        }
+
+        // then
+        assertEquals(Arrays.asList(8, 1, 4), formSizes);
+    }
+
+    @Test
+    public void testAtomAcrossBufferBoundary() throws IOException {
+        // given
+        StringBuilder longSymbol = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            longSymbol.append('s');
+        }
+        StringBuilder input = new StringBuilder();
+        for (int i = 0; i < 8190; i++) {
+            input.append(' ');
+        }
+        input.append("123456 ").append(longSymbol).append(" 7");
+
+        // when
+        TokenBuffer tokens = Tokenizer.tokenize(input.toString());
+
+        // then
+        assertEquals(3, tokens.size());
+        assertEquals(123456, tokens.number(0));
+        assertEquals(longSymbol.toString(), Symbols.name(tokens.symbol(1)));
+        assertEquals(7, tokens.number(2));
+    }
+}
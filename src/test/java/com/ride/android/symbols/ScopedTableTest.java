@@ -0,0 +1,69 @@
+package com.ride.android.symbols;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ScopedTableTest {
+    @Test
+    public void testInternReturnsSameId() {
+        // given
+        char[] chars = "(foo bar)".toCharArray();
+
+        // when
+        int fromString = Symbols.intern("foo");
+        int fromChars = Symbols.intern(chars, 1, 3);
+
+        // then
+        assertEquals(fromString, fromChars);
+        assertEquals("foo", Symbols.name(fromChars));
+    }
+
+    @Test
+    public void testInnerScopeShadowsOuter() {
+        // given
+        ScopedTable<String> table = new ScopedTable<>();
+        int x = Symbols.intern("x");
+        int y = Symbols.intern("y");
+        table.define(x, "outer");
+
+        // when
+        table.push();
+        table.define(x, "inner");
+        table.define(y, "local");
+
+        // then
+        assertEquals("inner", table.lookup(x));
+        assertEquals("local", table.lookup(y));
+
+        // when
+        table.pop();
+
+        // then
+        assertEquals("outer", table.lookup(x));
+        assertNull(table.lookup(y));
+    }
+
+    @Test
+    public void testRedefinitionInSameScope() {
+        // given
+        ScopedTable<String> table = new ScopedTable<>();
+        int x = Symbols.intern("x");
+        table.define(x, "outer");
+        table.push();
+        table.define(x, "first");
+
+        // when
+        table.define(x, "second");
+        table.pop();
+
+        // then
+        assertEquals("outer", table.lookup(x));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testRootScopeCannotBePopped() {
+        new ScopedTable<String>().pop();
+    }
+}
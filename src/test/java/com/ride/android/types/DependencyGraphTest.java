@@ -0,0 +1,90 @@
+package com.ride.android.types;
+
+import com.ride.android.ast.Ast;
+import com.ride.android.ast.Expression;
+import com.ride.android.parser.Parser;
+import com.ride.android.parser.Tokenizer;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class DependencyGraphTest {
+    private static List<Expression> ast(String input) {
+        return Ast.ast(Parser.parse(Tokenizer.tokenize(input)));
+    }
+
+    @Test
+    public void testIndependentDefinitionsShareWave() {
+        // given
+        List<Expression> forms = ast("(define (f x) (+ x 1)) (define (g x) (* x 2)) (+ (f 1) (g 2))");
+
+        // when
+        DependencyGraph graph = new DependencyGraph(forms);
+
+        // then
+        assertEquals(2, graph.waves.size());
+        assertEquals(2, graph.waves.get(0).size());
+        assertArrayEquals(new int[]{0, 1}, graph.dependencyForms[2]);
+    }
+
+    @Test
+    public void testReferenceGoesToPrecedingDefinition() {
+        // given
+        List<Expression> forms = ast("(define (f x) x) (f 1) (define (f x) (+ x 1)) (f 2)");
+
+        // when
+        DependencyGraph graph = new DependencyGraph(forms);
+
+        // then
+        assertArrayEquals(new int[]{0}, graph.dependencyForms[1]);
+        assertArrayEquals(new int[]{2}, graph.dependencyForms[3]);
+    }
+
+    @Test
+    public void testChainIsSplitIntoWaves() {
+        // given
+        List<Expression> forms = ast("(define (a x) x) (define (b x) (a x)) (define (c x) (b x)) (c 1)");
+
+        // when
+        DependencyGraph graph = new DependencyGraph(forms);
+
+        // then
+        assertEquals(4, graph.components.size());
+        assertEquals(4, graph.waves.size());
+    }
+
+    @Test
+    public void testParallelTypesMatchSequential() {
+        // given
+        StringBuilder program = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            program.append("(define (f").append(i).append(" x) (let (id (lambda (y) y)) (id (+ x ").append(i).append("))))\n");
+            if (i > 0) {
+                program.append("(define (g").append(i).append(" x) (f").append(i - 1).append(" (f").append(i).append(" x)))\n");
+            }
+        }
+        List<Expression> sequential = ast(program.toString());
+        List<Expression> parallel = ast(program.toString());
+
+        // when
+        TypeChecker parallelChecker = new TypeChecker(4);
+        new TypeChecker(1).inferBatch(sequential);
+        parallelChecker.inferBatch(parallel);
+        parallelChecker.shutdown();
+
+        // then
+        assertEquals(toStrings(sequential), toStrings(parallel));
+    }
+
+    private static List<String> toStrings(List<Expression> expressions) {
+        List<String> result = new ArrayList<>();
+        for (Expression expression : expressions) {
+            result.add(expression.toString());
+        }
+        return result;
+    }
+}
@@ -1,6 +1,7 @@
 package com.ride.android.types;
 
 import com.ride.android.ast.Expression;
+import com.ride.android.ast.Expressions;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -225,4 +226,71 @@ public class TypeCheckerTest {
         // then
         assertEquals(func(integer(), integer()), type);
     }
+
+    @Test
+    public void testRecursiveDefinition() {
+        // given
+        environment.define("==", func(args(integer(), integer()), bool()));
+        environment.define("-", func(args(integer(), integer()), integer()));
+        environment.define("+", func(args(integer(), integer()), integer()));
+
+        Expression e = new Expressions.Definition("count", list("n", "acc"),
+                cond(apply(var("=="), list(var("n"), literal(0))),
+                        var("acc"),
+                        apply(var("count"), list(
+                                apply(var("-"), list(var("n"), literal(1))),
+                                apply(var("+"), list(var("acc"), literal(1)))
+                        ))
+                )
+        );
+
+        // when
+        Type type = e.infer(environment).expose(environment);
+
+        // then
+        assertEquals(func(args(integer(), integer()), integer()), type);
+    }
+
+    @Test
+    public void testLetPolymorphism() {
+        // given
+        Expression e = let(
+                "id", lambda("x", var("x")),
+                apply(apply(var("id"), var("id")), literal(1))
+        );
+
+        // when
+        Types.Type result = e.infer(environment).expose(environment);
+
+        // then
+        assertEquals(integer(), result);
+    }
+
+    @Test
+    public void testLambdaArgIsNotGeneralized() {
+        // given
+        Expression e = lambda("x", let(
+                "y", var("x"),
+                var("y")
+        ));
+
+        // when
+        Types.Type result = e.infer(environment).expose(environment);
+
+        // then
+        assertThat(result, instanceOf(Types.TFunction.class));
+        assertEquals(((Types.TFunction) result).args.get(0),
+                ((Types.TFunction) result).res);
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testSelfApplicationFailsOccursCheck() {
+        // given
+        Expression e = lambda("x", apply(var("x"), var("x")));
+
+        // when
+        e.infer(environment);
+
+        // then fail
+    }
 }
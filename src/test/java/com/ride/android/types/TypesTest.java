@@ -0,0 +1,64 @@
+package com.ride.android.types;
+
+import org.junit.Test;
+
+import static com.ride.android.types.Types.*;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class TypesTest {
+    @Test
+    public void testEqualFunctionsAreShared() {
+        // given
+        Type first = func(args(integer(), integer()), bool());
+
+        // when
+        Type second = func(args(integer(), integer()), bool());
+
+        // then
+        assertSame(first, second);
+    }
+
+    @Test
+    public void testGroundTypeIsExposedToItself() {
+        // given
+        Environment environment = new Environment();
+        Type type = func(func(integer(), bool()), integer());
+
+        // when
+        Type exposed = type.expose(environment);
+
+        // then
+        assertSame(type, exposed);
+    }
+
+    @Test
+    public void testExposeResolvesBoundVariables() {
+        // given
+        Environment environment = new Environment();
+        Type var = environment.newvar();
+        Type type = func(var, var);
+        environment.unify(var, integer());
+
+        // when
+        Type exposed = type.expose(environment);
+
+        // then
+        assertNotSame(type, exposed);
+        assertSame(func(integer(), integer()), exposed);
+    }
+
+    @Test
+    public void testTypesWithVariablesAreNotInterned() {
+        // given
+        Environment environment = new Environment();
+        Type var = environment.newvar();
+        Type first = func(var, integer());
+
+        // when
+        Type second = func(var, integer());
+
+        // then
+        assertNotSame(first, second);
+    }
+}
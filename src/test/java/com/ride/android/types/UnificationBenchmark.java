@@ -0,0 +1,55 @@
+package com.ride.android.types;
+
+import static com.ride.android.types.Types.integer;
+
+/**
+ * Measures unification over chains of type variables (1k to 100k)
+ * <p>
+ * Each variable is unified with the next one, oldest variable first, which is the worst order for plain binding chains:
+ * every unification walks the whole chain built so far.
+ * Then the chain is bound to Int and every variable is exposed.
+ * Time per variable should stay flat, if unification is near-constant amortized.
+ */
+public class UnificationBenchmark {
+
+    public static void main(String[] args) {
+        // warm up
+        for (int i = 0; i < 10; i++) {
+            run(100_000, false);
+        }
+
+        for (int count = 1_000; count <= 100_000; count *= 10) {
+            run(count, true);
+        }
+    }
+
+    private static void run(int count, boolean report) {
+        Environment environment = new Environment();
+        Types.Type[] variables = new Types.Type[count];
+        for (int i = 0; i < count; i++) {
+            variables[i] = environment.newvar();
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i + 1 < count; i++) {
+            if (!environment.unify(variables[0], variables[i + 1])) {
+                throw new IllegalStateException("Variables must unify");
+            }
+        }
+        long unified = System.nanoTime();
+        environment.unify(variables[count - 1], integer());
+        for (Types.Type variable : variables) {
+            if (variable.expose(environment) != integer()) {
+                throw new IllegalStateException("Variable must be exposed to Int");
+            }
+        }
+        long exposed = System.nanoTime();
+
+        if (report) {
+            System.out.printf("%,8d variables: unify %7.2f ms (%6.1f ns/var), expose %7.2f ms (%6.1f ns/var)%n",
+                    count,
+                    (unified - start) / 1e6, (double) (unified - start) / count,
+                    (exposed - unified) / 1e6, (double) (exposed - unified) / count);
+        }
+    }
+}